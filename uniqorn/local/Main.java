@@ -10,9 +10,12 @@ import aeonics.template.Parameter;
 import uniqorn.Api;
 import uniqorn.Endpoint;
 import uniqorn.Router;
+import uniqorn.State;
 import uniqorn.Workspace;
 import uniqorn.internal.UniqornGitRepo;
 import uniqorn.internal.UniqornMcp;
+import uniqorn.internal.UniqornMetrics;
+import uniqorn.internal.UniqornReplication;
 
 public class Main extends Plugin
 {
@@ -21,6 +24,8 @@ public class Main extends Plugin
 	public void start()
 	{
 		Lifecycle.on(Phase.LOAD, this::onLoad);
+		// load the state snapshot before the first request rather than during it
+		Lifecycle.on(Phase.RUN, State::restore);
 	}
 
 	private void onLoad()
@@ -30,15 +35,147 @@ public class Main extends Plugin
 		Factory.add(new Router());
 		Factory.add(new UniqornGitRepo());
 		Factory.add(new UniqornMcp());
+		Factory.add(new UniqornMetrics());
+		Factory.add(new UniqornReplication());
 		Factory.add(new uniqorn.storage.File());
 		Factory.add(new uniqorn.storage.AWS());
 		Factory.add(new uniqorn.database.Mariadb());
 		Factory.add(new uniqorn.database.Pgsql());
 		Factory.add(new uniqorn.database.Sqlite());
 
+		// the admin endpoints are not part of the configuration snapshot
+		Factory.of(aeonics.http.Endpoint.class).get(UniqornMetrics.class).create();
+		Factory.of(aeonics.http.Endpoint.class).get(UniqornReplication.class).create();
+
 		Manager.of(Config.class).declare(Api.class, new Parameter("policy")
 			.summary("Compilation policy")
 			.description("The id of the policy that inspects the classes referenced by deployed endpoint code. When set, endpoint deployments are compiled under that policy and rejected if it refuses a referenced class.")
 			.format(Parameter.Format.TEXT));
+		Manager.of(Config.class).declare(Api.class, new Parameter("timeout")
+			.summary("Request timeout")
+			.description("The time in milliseconds allowed to an endpoint call by default, after which it fails with HTTP 504. Endpoints can override it. Zero disables the timeout.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("defer.workers")
+			.summary("Background workers")
+			.description("The number of threads of each workspace that run the work deferred by its endpoints. Defaults to 4.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("defer.capacity")
+			.summary("Background queue capacity")
+			.description("The maximum number of deferred tasks waiting for a worker in each workspace. Defaults to 10000.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("defer.overflow")
+			.summary("Background queue overflow")
+			.description("What happens to a deferred task when the queue of its workspace is full: 'reject' fails it with HTTP 503, 'caller' runs it on the calling thread. Defaults to 'reject'.")
+			.format(Parameter.Format.TEXT)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("state.max.entries")
+			.summary("State capacity")
+			.description("The maximum number of state entries kept on this instance. The least frequently used entries are evicted beyond it. Zero disables the limit.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("state.max.bytes")
+			.summary("State memory")
+			.description("The maximum estimated size in bytes of the state kept on this instance. The least frequently used entries are evicted beyond it. Zero disables the limit.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("state.quota.endpoint.entries")
+			.summary("Endpoint state quota")
+			.description("The maximum number of local state entries of a single endpoint. Zero disables the quota.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("state.quota.endpoint.bytes")
+			.summary("Endpoint state memory quota")
+			.description("The maximum estimated size in bytes of the local state of a single endpoint. Zero disables the quota.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("state.quota.user.entries")
+			.summary("User state quota")
+			.description("The maximum number of state entries bound to a single user, per endpoint and in the global state. Zero disables the quota.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("state.quota.user.bytes")
+			.summary("User state memory quota")
+			.description("The maximum estimated size in bytes of the state bound to a single user, per endpoint and in the global state. Zero disables the quota.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("state.offheap.threshold")
+			.summary("State off-heap threshold")
+			.description("The estimated size in bytes from which byte arrays, strings and data values of the state are held off-heap. Zero keeps every value on the heap.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("state.offheap.capacity")
+			.summary("State off-heap capacity")
+			.description("The maximum total size in bytes of the state values held off-heap. Values that do not fit stay on the heap. Zero keeps every value on the heap.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("state.snapshot.storage")
+			.summary("State snapshot storage")
+			.description("The name of the uniqorn storage the state is periodically written to and restored from after a restart. When not set, the state lives in memory only.")
+			.format(Parameter.Format.TEXT)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("state.snapshot.interval")
+			.summary("State snapshot interval")
+			.description("The number of seconds between two state snapshots. Only the partitions that changed are written again. Defaults to 60.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("state.snapshot.max.bytes")
+			.summary("State snapshot size")
+			.description("The maximum size in bytes of the snapshot of a single partition. Larger partitions are not saved and their previous snapshot is removed. Zero disables the limit.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("state.replication.peers")
+			.summary("State replication peers")
+			.description("The base urls of the other instances, separated by commas, that the changes of the global state are sent to. When not set, the global state is not replicated.")
+			.format(Parameter.Format.TEXT)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("state.replication.secret")
+			.summary("State replication secret")
+			.description("The secret shared by the replicated instances, used to sign the changes they send each other. Replication is disabled when not set.")
+			.format(Parameter.Format.TEXT)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("state.replication.mode")
+			.summary("State replication mode")
+			.description("Either 'delta' to send the new values to the peers, or 'invalidate' to only make them drop their copy. Counter increments are always sent. Defaults to 'delta'.")
+			.format(Parameter.Format.TEXT)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("state.replication.consistency")
+			.summary("State replication consistency")
+			.description("Either 'async' for writes that never wait for the peers, or 'sync' for writes of the global state that return once every peer received them and fail with HTTP 503 otherwise. The change is applied locally and retried in both cases. Defaults to 'async'.")
+			.format(Parameter.Format.TEXT)
+			.optional(true));
+
+		Manager.of(Config.class).declare(Api.class, new Parameter("ratelimit.endpoint.rate")
+			.summary("Endpoint rate limit")
+			.description("The sustained number of calls per second accepted by each endpoint. When not set, the platform default rate applies. Zero disables the limit.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("ratelimit.endpoint.burst")
+			.summary("Endpoint burst")
+			.description("The number of calls an endpoint accepts in a burst above its sustained rate. Defaults to the rate.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("ratelimit.user.rate")
+			.summary("User rate limit")
+			.description("The sustained number of calls per second accepted from each authenticated user across all endpoints. Zero disables the limit.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("ratelimit.user.burst")
+			.summary("User burst")
+			.description("The number of calls a user may issue in a burst above the sustained rate.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("ratelimit.ip.rate")
+			.summary("Client IP rate limit")
+			.description("The sustained number of calls per second accepted from each client IP address across all endpoints. Zero disables the limit.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
+		Manager.of(Config.class).declare(Api.class, new Parameter("ratelimit.ip.burst")
+			.summary("Client IP burst")
+			.description("The number of calls a client IP address may issue in a burst above the sustained rate.")
+			.format(Parameter.Format.NUMBER)
+			.optional(true));
 	}
 }
@@ -1,18 +1,21 @@
 package uniqorn;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import aeonics.data.*;
 import aeonics.entity.security.User;
 import aeonics.http.*;
 import aeonics.manager.Config;
-import aeonics.manager.Executor;
 import aeonics.manager.Logger;
 import aeonics.manager.Manager;
 import aeonics.manager.Monitor;
@@ -26,6 +29,19 @@ import aeonics.util.Functions.Runnable;
 import aeonics.util.Functions.Supplier;
 import aeonics.util.Tuples.Tuple;
 import aeonics.util.StringUtils;
+import uniqorn.internal.AccessRules;
+import uniqorn.internal.AdaptiveLimit;
+import uniqorn.internal.Admission;
+import uniqorn.internal.Deadline;
+import uniqorn.internal.ETags;
+import uniqorn.internal.Globals;
+import uniqorn.internal.Locks;
+import uniqorn.internal.Metrics;
+import uniqorn.internal.ResponseCache;
+import uniqorn.internal.RouteTable;
+import uniqorn.internal.SingleFlight;
+import uniqorn.internal.Threads;
+import uniqorn.internal.WorkQueue;
 
 /**
  * This class is the main API endpoint builder.
@@ -41,47 +57,39 @@ public class Api extends Entity
 	private final Set<String> deniedRoles = new HashSet<>();
 	private final Set<String> deniedGroups = new HashSet<>();
 	private final Set<String> deniedUsers = new HashSet<>();
-	private final AtomicInteger concurrency = new AtomicInteger(-1);
-	private final AtomicLong concurrencyWait = new AtomicLong(-1);
-	private final AtomicInteger active = new AtomicInteger(0);
-	private final ReentrantLock concurrencyLock = new ReentrantLock();
-	private final Condition concurrencyAvailable = concurrencyLock.newCondition();
+	// compiled from the sets above when first needed, reset when they change
+	private volatile AccessRules rules = null;
+	private final String route;
+	private volatile Admission admission = null;
+	private final List<String> parameters = new ArrayList<>();
+	private volatile ResponseCache cache = null;
+	private volatile SingleFlight coalesce = null;
+	private volatile boolean etag = false;
+	private volatile Supplier<Object> version = null;
+	private volatile Long timeout = null;
+	// the stable identity of the endpoint in the state, its source path
+	private volatile String source = null;
+	
+	// the api and user the router already checked on this thread, so the handler does not check them twice
+	private static final class Grant
+	{
+		private final Api api;
+		private final User.Type user;
+		private Grant(Api api, User.Type user) { this.api = api; this.user = user; }
+	}
+	private static final ThreadLocal<Grant> granted = new ThreadLocal<>();
 	
 	private void securityCheck(Data data, User.Type user)
 	{
 		if( user == User.SYSTEM ) return;
+		Grant g = granted.get();
+		if( g != null && g.api == this && g.user == user ) return;
 		
-		boolean allowed = false;
-		
-		for( String u : deniedUsers )
-			if( u != null && !u.isBlank() && (user.id().equalsIgnoreCase(u) || user.name().equalsIgnoreCase(u) || user.login().equalsIgnoreCase(u)) )
-				throw new HttpException(403, "Access denied");
-		
-		for( String u : allowedUsers )
-			if( u != null && !u.isBlank() && (user.id().equalsIgnoreCase(u) || user.name().equalsIgnoreCase(u) || user.login().equalsIgnoreCase(u)) )
-				allowed = true;
-		
-		for( String role : deniedRoles )
-			if( role != null && !role.isBlank() && user.hasRole(role) )
-				throw new HttpException(403, "Access denied");
-		
-		for( String role : allowedRoles )
-			if( role != null && !role.isBlank() && user.hasRole(role) )
-				allowed = true;
-		
-		for( String group : deniedGroups )
-			if( group != null && !group.isBlank() && user.isMemberOf(group) )
-				throw new HttpException(403, "Access denied");
-		
-		for( String group : allowedGroups )
-			if( group != null && !group.isBlank() && user.isMemberOf(group) )
-				allowed = true;
+		AccessRules r = rules;
+		if( r == null )
+			rules = r = new AccessRules(allowedUsers, allowedRoles, allowedGroups, deniedUsers, deniedRoles, deniedGroups);
 		
-		// allow by default if there is no other allow
-		if( allowedUsers.isEmpty() && allowedRoles.isEmpty() && allowedGroups.isEmpty() )
-			allowed = true;
-		
-		if( !allowed ) throw new HttpException(403, "Access denied");
+		if( !r.allows(user) ) throw new HttpException(403, "Access denied");
 	}
 	
 	/**
@@ -96,6 +104,14 @@ public class Api extends Entity
 	 * @hidden
 	 */
 	public final aeonics.http.Endpoint.Template apitemplate() { return template; }
+	/**
+	 * @hidden
+	 */
+	public final String source() { String s = source; return s != null ? s : api.id(); }
+	/**
+	 * @hidden
+	 */
+	public final void source(String source) { this.source = source; }
 	
 	/**
 	 * Creates a new API endpoint with the provided path and method
@@ -114,6 +130,7 @@ public class Api extends Entity
 		
 		if( method == null || method.isBlank() )
 			throw new HttpException(422, "The api method is invalid");
+		route = method.toUpperCase() + " " + path;
 		
 		// set the entity category
 		initialize(StringUtils.toLowerCase(Api.class), StringUtils.toLowerCase(Api.class), null, true);
@@ -218,6 +235,10 @@ public class Api extends Entity
 	 * The chained endpoint's RBAC is enforced against {@code user}. Passing {@link User#SYSTEM}
 	 * bypasses every access check, so only do so deliberately; to keep the caller's permissions use
 	 * one of the overloads without a user argument, which preserve the current caller's identity.
+	 * <p>
+	 * Uniqorn endpoints are resolved from the route table and called directly, without going through
+	 * the http router. Their access rules, parameters, rate and concurrency limits and response cache
+	 * still apply. The chained endpoint gets at most the time left to the caller, see {@link #timeout(long)}.
 	 * @param url the other endpoint path
 	 * @param method the HTTP method
 	 * @param data the parameters
@@ -227,9 +248,18 @@ public class Api extends Entity
 	 */
 	public static Data chain(String url, String method, Data data, User.Type user) throws Exception
 	{
-		if( !url.startsWith(Manager.of(Config.class).get(Api.class, "prefix").asString()) )
+		Deadline.check();
+		RouteTable table = RouteTable.get();
+		if( !url.startsWith(table.prefix()) )
 			throw new HttpException(404);
 		
+		// uniqorn endpoints are resolved from the route table and called directly
+		String path = url.substring(table.prefix().length());
+		RouteTable.Route route = table.lookup(method, path);
+		if( route != null )
+			return Router.chain(route, url, method, path, data == null ? Data.map() : data, user == null ? User.ANONYMOUS : user);
+		
+		// other endpoints under the prefix
 		aeonics.http.Endpoint.Type endpoint = Registry.of(aeonics.http.Endpoint.class).get(e -> e.matchesMethod(method) && e.matchesPath(url));
 		if( endpoint == null ) throw new HttpException(404);
 		
@@ -239,6 +269,99 @@ public class Api extends Entity
 		);
 	}
 	
+	/**
+	 * Calls several other endpoints concurrently using the GET method, preserving the current caller's identity.
+	 * @param timeout the time in milliseconds allowed for all the calls, or a non-positive value to wait until they all complete
+	 * @param urls the other endpoint paths
+	 * @return the results in the order of the urls, see {@link #chainAll(Data, long)}
+	 * @throws Exception if the calling thread is interrupted
+	 */
+	public static Data chainAll(long timeout, String... urls) throws Exception
+	{
+		Data calls = Data.list();
+		for( String url : urls )
+			calls.add(Data.map().put("url", url));
+		return chainAll(calls, timeout);
+	}
+	
+	/**
+	 * Calls several other endpoints concurrently, preserving the current caller's identity, and waits until they all complete.
+	 * @param calls the calls, see {@link #chainAll(Data, long)}
+	 * @return the results in the order of the calls
+	 * @throws Exception if the calling thread is interrupted
+	 */
+	public static Data chainAll(Data calls) throws Exception { return chainAll(calls, 0); }
+	
+	/**
+	 * Calls several other endpoints concurrently, preserving the current caller's identity.
+	 * <pre>Data results = Api.chainAll(Data.list()
+	 *	.add(Data.map().put("url", "/api/a"))
+	 *	.add(Data.map().put("url", "/api/b").put("method", "POST").put("data", Data.map().put("id", 1))), 2000);</pre>
+	 * Each call is a map with the <code>url</code>, the optional <code>method</code> (GET by default) and the
+	 * optional <code>data</code> parameters, as for {@link #chain(String, String, Data)}. The calls run on
+	 * separate threads with the same user and endpoint context as the caller, so the total time is that of the
+	 * slowest call rather than the sum of all of them.
+	 * <p>
+	 * Each result is a map with the <code>code</code> and either the <code>response</code> or the
+	 * <code>error</code> message, in the order of the calls. A failed call does not fail the others. Calls
+	 * still running when the timeout or the deadline of the caller expires are interrupted and reported with code 504.
+	 * On runtimes without virtual threads, calls that find every pooled thread busy are not run and are
+	 * reported with code 503.
+	 * @param calls the list of calls
+	 * @param timeout the time in milliseconds allowed for all the calls, or a non-positive value to wait until they all complete
+	 * @return the results in the order of the calls
+	 * @throws Exception if the calling thread is interrupted
+	 */
+	public static Data chainAll(Data calls, long timeout) throws Exception
+	{
+		if( calls == null || !calls.isList() ) throw new HttpException(422, "The chained calls must be a list");
+		
+		// the children run on other threads, hand them the caller's context
+		final String api = State.api.get();
+		final User.Type user = State.user.get();
+		final long deadline = Deadline.within(timeout);
+		
+		List<Future<Data>> futures = new ArrayList<>();
+		for( Data call : calls )
+		{
+			final String url = call.asString("url");
+			final String method = call.isEmpty("method") ? "GET" : call.asString("method");
+			final Data data = call.get("data").isMap() ? call.get("data") : Data.map();
+			futures.add(Threads.submit(() -> State.run(api, user, () -> Deadline.run(deadline, () -> chain(url, method, data, user)))));
+		}
+		
+		Data results = Data.list();
+		for( int i = 0; i < futures.size(); i++ )
+		{
+			Future<Data> f = futures.get(i);
+			try
+			{
+				Data response = deadline != 0 ? f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) : f.get();
+				int code = response.isMap() && response.asBool("isHttpResponse") && !response.isEmpty("code") ? response.asInt("code") : 200;
+				results.add(Data.map().put("code", code).put("response", response));
+			}
+			catch(TimeoutException e)
+			{
+				f.cancel(true);
+				results.add(Data.map().put("code", 504).put("error", "The chained call did not complete in time"));
+			}
+			catch(ExecutionException e)
+			{
+				Throwable cause = e.getCause();
+				int code = cause instanceof HttpException ? ((HttpException) cause).code : 500;
+				results.add(Data.map().put("code", code).put("error", cause.getMessage()));
+			}
+			catch(InterruptedException e)
+			{
+				for( int j = i; j < futures.size(); j++ )
+					futures.get(j).cancel(true);
+				Thread.currentThread().interrupt();
+				throw new HttpException(503, "The request was interrupted while waiting for its chained calls");
+			}
+		}
+		return results;
+	}
+	
 	/**
 	 * Set the API processing function.
 	 * <pre>api.process(() -&gt; "OK");</pre>
@@ -278,76 +401,77 @@ public class Api extends Entity
 	{
 		if( handler == null ) throw new HttpException(422, "The endpoint process function is not valid");
 		
-		final BiFunction<Data, User.Type, Object> wrapper = (data, user) ->
-		{
-			// the caller's context, restored when this endpoint returns
-			final String previousApi = State.api.get();
-			final User.Type previousUser = State.user.get();
-			// true once this request has taken a concurrency slot that must be released on the way out
-			boolean acquired = false;
-			try
-			{
-				State.api.set(api().id());
-				State.user.set(user);
-				concurrencyLock.lock();
-				try
-				{
-					long maxWait = concurrencyWait.get();
-					long deadline = maxWait >= 0 ? System.nanoTime() + maxWait * 1_000_000L : 0;
-					while (concurrency.get() > 0 && active.get() >= concurrency.get())
-					{
-						if (maxWait < 0)
-							concurrencyAvailable.await();
-						else
-						{
-							long remaining = deadline - System.nanoTime();
-							if (remaining <= 0)
-								throw new HttpException(503, "The endpoint is busy, please retry later");
-							concurrencyAvailable.awaitNanos(remaining);
-						}
-					}
-					active.incrementAndGet();
-					acquired = true;
-				}
-				catch (InterruptedException e)
-				{
-					// turn the interrupt into a 503 for this request without restoring the thread interrupt flag
-					throw new HttpException(503, "The request was interrupted while waiting for a free slot");
-				}
-				finally { concurrencyLock.unlock(); }
-
-	            return handler.apply(data, user);
-	        }
-			catch(HttpException he)
-			{
-				throw he;
-			}
-			catch(Exception x)
-			{
-				Manager.of(Logger.class).log(Logger.INFO, Api.class, x);
-				throw new HttpException(500, x);
-			}
-			finally
-			{
-				State.api.set(previousApi);
-				State.user.set(previousUser);
-				if( acquired )
-				{
-					concurrencyLock.lock();
-					try
-					{
-						active.decrementAndGet();
-						concurrencyAvailable.signalAll();
-					}
-					finally { concurrencyLock.unlock(); }
-				}
-	        }
-		};
+		// the calling thread holds the deadline of a chaining endpoint
+		final BiFunction<Data, User.Type, Object> wrapper = (data, user) -> invoke(handler, data, user, Deadline.within(timeout()));
 		
 		api().process(wrapper);
 		return this;
 	}
 	
+	// runs the handler with the State context of this endpoint, on the thread of the call
+	private Object invoke(BiFunction<Data, User.Type, Object> handler, Data data, User.Type user, long deadline)
+	{
+		// the caller's context is restored when this endpoint returns
+		try
+		{
+			Object result = State.run(source(), user, () -> Deadline.run(deadline, () ->
+			{
+				Deadline.check();
+				
+				SingleFlight flight = coalesce;
+				if( flight == null )
+					return gated(handler, data, user);
+				
+				// identical concurrent calls share one execution, only that one takes a concurrency slot
+				Admission gate = admission;
+				return flight.run(flight.key(values(data), user), gate == null ? -1 : gate.maxWait(), () -> gated(handler, data, user));
+			}));
+			// a handler that reached no deadline check in time still returns its response
+			if( deadline != 0 && deadline - System.nanoTime() <= 0 )
+				Metrics.add(Globals.MONITOR_TYPE_DEADLINE, route, "late", 0);
+			return result;
+		}
+		catch(HttpException he)
+		{
+			if( he.code == 504 ) Metrics.add(Globals.MONITOR_TYPE_DEADLINE, route, "expired", 0);
+			throw he;
+		}
+		catch(Exception x)
+		{
+			Manager.of(Logger.class).log(Logger.INFO, Api.class, x);
+			throw new HttpException(500, x);
+		}
+	}
+	
+	// runs the handler within a concurrency slot
+	private Object gated(BiFunction<Data, User.Type, Object> handler, Data data, User.Type user) throws Exception
+	{
+		// the slot is released to the controller it was taken from, even if the settings change meanwhile
+		Admission gate = admission;
+		if( gate == null )
+			return handler.apply(data, user);
+		
+		gate.acquire();
+		long start = System.nanoTime();
+		boolean failed = true;
+		try
+		{
+			Object result = handler.apply(data, user);
+			failed = false;
+			return result;
+		}
+		catch(HttpException e)
+		{
+			// client errors say nothing about the endpoint health
+			if( e.code < 500 ) failed = false;
+			throw e;
+		}
+		finally
+		{
+			gate.release(System.nanoTime() - start, failed);
+		}
+	}
+	
 	/**
 	 * Set the endpoint display name
 	 * @param value the endpoint name
@@ -389,7 +513,10 @@ public class Api extends Entity
 	public Api allowRole(String ...role)
 	{
 		if( role != null && role.length > 0 )
+		{
 			Collections.addAll(allowedRoles, role);
+			rules = null;
+		}
 		return this;
 	}
 	
@@ -401,7 +528,10 @@ public class Api extends Entity
 	public Api allowGroup(String ...group)
 	{
 		if( group != null && group.length > 0 )
+		{
 			Collections.addAll(allowedGroups, group);
+			rules = null;
+		}
 		return this;
 	}
 	
@@ -413,7 +543,10 @@ public class Api extends Entity
 	public Api allowUser(String ...user)
 	{
 		if( user != null && user.length > 0 )
+		{
 			Collections.addAll(allowedUsers, user);
+			rules = null;
+		}
 		return this;
 	}
 	
@@ -425,7 +558,10 @@ public class Api extends Entity
 	public Api denyRole(String ...role)
 	{
 		if( role != null && role.length > 0 )
+		{
 			Collections.addAll(deniedRoles, role);
+			rules = null;
+		}
 		return this;
 	}
 	
@@ -437,7 +573,10 @@ public class Api extends Entity
 	public Api denyGroup(String ...group)
 	{
 		if( group != null && group.length > 0 )
+		{
 			Collections.addAll(deniedGroups, group);
+			rules = null;
+		}
 		return this;
 	}
 	
@@ -449,7 +588,10 @@ public class Api extends Entity
 	public Api denyUser(String ...user)
 	{
 		if( user != null && user.length > 0 )
+		{
 			Collections.addAll(deniedUsers, user);
+			rules = null;
+		}
 		return this;
 	}
 	
@@ -504,41 +646,336 @@ public class Api extends Entity
 		// caution: since the instance is created before the parameter is added to the template
 		// then we need to manually add the parameter to the instance too
 		api().parameters().put(p.name(), Tuple.of(null, p));
+		if( !parameters.contains(p.name()) ) parameters.add(p.name());
 		
 		return this;
 	}
 	
+	/**
+	 * Caches the successful responses of this endpoint for GET calls. The responses are keyed by the
+	 * path and the values of the declared {@link #parameter(String) parameters}, and shared by all
+	 * users that are allowed to call this endpoint. Up to 1000 responses are kept.
+	 * <p>
+	 * Only cache endpoints whose response does not depend on the calling user or on state that
+	 * changes faster than the time-to-live.
+	 * @param ttlMillis how long a response is reused, in milliseconds
+	 * @return this
+	 */
+	public Api cache(long ttlMillis)
+	{
+		return cache(ttlMillis, 1000, false);
+	}
+
+	/**
+	 * Caches the successful responses of this endpoint for GET calls. The responses are keyed by the
+	 * path and the values of the declared {@link #parameter(String) parameters}, and shared by all
+	 * users that are allowed to call this endpoint.
+	 * @param ttlMillis how long a response is reused, in milliseconds
+	 * @param maxEntries the maximum number of responses kept, the least recently used are evicted first
+	 * @return this
+	 */
+	public Api cache(long ttlMillis, int maxEntries)
+	{
+		return cache(ttlMillis, maxEntries, false);
+	}
+
+	/**
+	 * Caches the successful responses of this endpoint for GET calls. The responses are keyed by the
+	 * path, the values of the declared {@link #parameter(String) parameters} and optionally the user.
+	 * Access rules are checked before a cached response is returned. The cache is dropped when the
+	 * endpoint is redeployed.
+	 * @param ttlMillis how long a response is reused, in milliseconds
+	 * @param maxEntries the maximum number of responses kept, the least recently used are evicted first
+	 * @param perUser whether each user gets its own cached responses
+	 * @return this
+	 */
+	public Api cache(long ttlMillis, int maxEntries, boolean perUser)
+	{
+		if( ttlMillis <= 0 || maxEntries <= 0 )
+			throw new HttpException(422, "The cache settings are invalid");
+		cache = new ResponseCache(ttlMillis, maxEntries, perUser);
+		return this;
+	}
+
+	/**
+	 * @hidden
+	 */
+	public final ResponseCache cache() { return cache; }
+
+	/**
+	 * Coalesces identical concurrent calls of this endpoint: while a call runs, the calls with the
+	 * same declared {@link #parameter(String) parameter} values wait for it and receive the same
+	 * response or error instead of running the handler again. The waiting calls do not take a
+	 * {@link #concurrency(int) concurrency} slot.
+	 * <p>
+	 * Calls from different users are coalesced too, so only use this for endpoints whose response
+	 * does not depend on the calling user, or use {@link #coalesce(boolean)}.
+	 * @return this
+	 */
+	public Api coalesce()
+	{
+		return coalesce(false);
+	}
+
+	/**
+	 * Coalesces identical concurrent calls of this endpoint: while a call runs, the calls with the
+	 * same declared {@link #parameter(String) parameter} values wait for it and receive the same
+	 * response or error instead of running the handler again. The waiting calls do not take a
+	 * {@link #concurrency(int) concurrency} slot.
+	 * @param perUser whether only the calls of the same user are coalesced
+	 * @return this
+	 */
+	public Api coalesce(boolean perUser)
+	{
+		coalesce = new SingleFlight(perUser);
+		return this;
+	}
+
+	/**
+	 * Builds the response cache key of a call
+	 * @hidden
+	 */
+	public final String cacheKey(String path, Data query, User.Type user)
+	{
+		return path + "\n" + (cache != null && cache.perUser() && user != null ? user.id() : "") + "\n" + values(query);
+	}
+	
+	private Data values(Data query)
+	{
+		Data values = Data.map();
+		for( String name : parameters )
+			values.put(name, query == null ? null : query.get(name));
+		return values;
+	}
+	
+	/**
+	 * Tags the successful responses of this endpoint for GET calls with an <code>ETag</code> header
+	 * computed from the response content. A client that sends the same tag back in the
+	 * <code>If-None-Match</code> header receives an empty HTTP 304 response instead of the content.
+	 * <p>
+	 * The handler still runs to compute the tag, so this saves bandwidth but not processing unless the
+	 * responses are also {@link #cache(long) cached}. A handler that returns an HTTP response with
+	 * its own <code>ETag</code> header keeps it.
+	 * <p>
+	 * The header is only added to HTTP responses: a handler that returns a plain value gets it back
+	 * unchanged, so its clients are not told the tag.
+	 * @return this
+	 */
+	public Api etag()
+	{
+		etag = true;
+		return this;
+	}
+	
+	/**
+	 * Tags the successful responses of this endpoint for GET calls with an <code>ETag</code> header
+	 * derived from a version key, the path, the declared {@link #parameter(String) parameter} values
+	 * and the user. The version is obtained before the handler runs, so a client that sends the
+	 * current tag back in the <code>If-None-Match</code> header receives an empty HTTP 304 response
+	 * without running the handler at all. As with {@link #etag()}, the header is only added to HTTP responses.
+	 * <pre>api.etag(() -&gt; State.global("catalog.version"));</pre>
+	 * @param version returns the current version of the data served by this endpoint, it must change whenever the response would
+	 * @return this
+	 */
+	public Api etag(Supplier<Object> version)
+	{
+		if( version == null ) throw new HttpException(422, "The endpoint version function is not valid");
+		this.version = version;
+		etag = true;
+		return this;
+	}
+	
+	/**
+	 * @hidden
+	 */
+	public final boolean etags() { return etag; }
+	
+	/**
+	 * Computes the version based entity tag of a call
+	 * @return the entity tag or null if this endpoint has no version key
+	 * @hidden
+	 */
+	public final String versionTag(String path, Data query, User.Type user) throws Exception
+	{
+		Supplier<Object> v = version;
+		if( v == null ) return null;
+		
+		return State.run(source(), user, () -> ETags.of(String.valueOf(v.get()) + "\n" + path + "\n" + (user == null ? "" : user.id()) + "\n" + values(query)));
+	}
+
+	/**
+	 * Runs the access rules of this endpoint against the specified user, and skips them when the
+	 * handler runs on this thread for the same user, until {@link #revoke(Object)}
+	 * @return the previous authorization of this thread, to pass to {@link #revoke(Object)}
+	 * @hidden
+	 */
+	public final Object authorize(User.Type user)
+	{
+		securityCheck(null, user);
+		Grant previous = granted.get();
+		granted.set(new Grant(this, user));
+		return previous;
+	}
+	
+	/**
+	 * Restores the authorization of this thread that {@link #authorize(User.Type)} replaced
+	 * @hidden
+	 */
+	public static void revoke(Object previous)
+	{
+		if( previous == null ) granted.remove();
+		else granted.set((Grant) previous);
+	}
+
 	/**
 	 * Sets the maximum number of requests this endpoint serves at once. Requests over the limit
-	 * wait indefinitely for a running one to finish before they start; the order in which waiting
-	 * requests are admitted is not guaranteed.
-	 * @param level the concurrency level
+	 * wait indefinitely for a running one to finish before they start, in their order of arrival.
+	 * @param level the concurrency level, zero or less means no limit
 	 * @return this
 	 */
 	public Api concurrency(int level)
 	{
-		return concurrency(level, -1);
+		return concurrency(level, -1, -1);
 	}
 
 	/**
 	 * Sets the maximum number of requests this endpoint serves at once, and how long a waiting
 	 * request holds for a free slot. A request that does not obtain a slot within
 	 * {@code maxWaitMillis} fails with HTTP 503 instead of waiting further.
-	 * @param level the concurrency level
+	 * @param level the concurrency level, zero or less means no limit
 	 * @param maxWaitMillis the longest a request waits for a free slot, in milliseconds, or a negative value to wait indefinitely
 	 * @return this
 	 */
 	public Api concurrency(int level, long maxWaitMillis)
 	{
-		concurrency.set(level);
-		concurrencyWait.set(maxWaitMillis);
+		return concurrency(level, maxWaitMillis, -1);
+	}
+	
+	/**
+	 * Sets the maximum number of requests this endpoint serves at once, how long a waiting request
+	 * holds for a free slot and how many requests may wait. Waiting requests are admitted in their
+	 * order of arrival. A request that arrives when {@code maxQueue} requests are already waiting
+	 * fails immediately with HTTP 503, so does a request that does not obtain a slot within
+	 * {@code maxWaitMillis}.
+	 * @param level the concurrency level, zero or less means no limit
+	 * @param maxWaitMillis the longest a request waits for a free slot, in milliseconds, or a negative value to wait indefinitely
+	 * @param maxQueue the maximum number of waiting requests, or a negative value for no limit
+	 * @return this
+	 */
+	public Api concurrency(int level, long maxWaitMillis, int maxQueue)
+	{
+		if( level <= 0 )
+			admission = null;
+		else if( admission == null )
+			admission = new Admission(route, level, maxWaitMillis, maxQueue);
+		else
+		{
+			admission.configure(level, maxWaitMillis, maxQueue);
+			admission.adaptive(null);
+		}
+		return this;
+	}
+	
+	/**
+	 * Lets the maximum number of requests this endpoint serves at once follow the observed
+	 * latency and error rate. The limit grows while the endpoint keeps up, and shrinks when the
+	 * latency degrades or too many requests fail with a server error, for instance when a database
+	 * is saturated. Requests over the limit wait indefinitely in their order of arrival.
+	 * @param min the lowest concurrency level
+	 * @param max the highest concurrency level
+	 * @return this
+	 */
+	public Api adaptiveConcurrency(int min, int max)
+	{
+		return adaptiveConcurrency(min, max, -1, -1);
+	}
+	
+	/**
+	 * Lets the maximum number of requests this endpoint serves at once follow the observed
+	 * latency and error rate, see {@link #adaptiveConcurrency(int, int)}. Waiting requests
+	 * are bounded like with {@link #concurrency(int, long, int)}.
+	 * @param min the lowest concurrency level
+	 * @param max the highest concurrency level
+	 * @param maxWaitMillis the longest a request waits for a free slot, in milliseconds, or a negative value to wait indefinitely
+	 * @param maxQueue the maximum number of waiting requests, or a negative value for no limit
+	 * @return this
+	 */
+	public Api adaptiveConcurrency(int min, int max, long maxWaitMillis, int maxQueue)
+	{
+		if( min <= 0 || max < min )
+			throw new HttpException(422, "The concurrency bounds are invalid");
+		
+		AdaptiveLimit limit = new AdaptiveLimit(min, max);
+		if( admission == null )
+			admission = new Admission(route, limit.initial(), maxWaitMillis, maxQueue);
+		else
+			admission.configure(admission.limit(), maxWaitMillis, maxQueue);
+		admission.adaptive(limit);
 		return this;
 	}
 	
-	// a single instance-wide lock shared by every endpoint; one atomic() block blocks every
-	// other atomic() call on the instance
-	private static final ReentrantLock atomicLock = new ReentrantLock();
-
+	/**
+	 * @hidden
+	 */
+	public final Admission admission() { return admission; }
+	
+	/**
+	 * Sets the time allowed to this endpoint, from the moment it is called until it responds.
+	 * <pre>api.timeout(2000);</pre>
+	 * The handler runs on the thread of the call and the deadline is enforced where it blocks: the wait for a
+	 * {@link #concurrency(int) concurrency} slot, the {@link #chain(String, String, Data) chained} calls, and
+	 * the database and storage calls of the handler fail with HTTP 504 once it passed. Long handlers can check
+	 * it with {@link #remaining()} or {@link #checkDeadline()}. A handler that reaches none of these points
+	 * is not cut short: its response is returned late and counted under the deadline monitor.
+	 * <p>
+	 * A chained endpoint never gets more time than its caller has left. When not set, the instance-wide
+	 * <code>timeout</code> configuration applies.
+	 * @param millis the time allowed in milliseconds, zero or less for no timeout
+	 * @return this
+	 */
+	public Api timeout(long millis)
+	{
+		timeout = millis;
+		return this;
+	}
+	
+	// the instance-wide timeout, read from the configuration every few seconds rather than on every call
+	private static volatile long defaultTimeout = 0;
+	private static volatile long defaultTimeoutRead = 0;
+	
+	private long timeout()
+	{
+		Long t = timeout;
+		if( t != null ) return t;
+		long now = System.currentTimeMillis();
+		if( now - defaultTimeoutRead >= 5_000 )
+		{
+			defaultTimeout = Manager.of(Config.class).get(Api.class, "timeout").asLong();
+			defaultTimeoutRead = now;
+		}
+		return defaultTimeout;
+	}
+	
+	/**
+	 * Returns the time left before the deadline of the current call, see {@link #timeout(long)}.
+	 * <pre>while( Api.remaining() &gt; 100 ) { ... }</pre>
+	 * @return the time left in milliseconds, zero if the deadline passed, or {@link Long#MAX_VALUE} if there is no deadline
+	 */
+	public static long remaining()
+	{
+		return Deadline.remaining();
+	}
+	
+	/**
+	 * Fails the current call if its deadline passed, see {@link #timeout(long)}.
+	 * <pre>for( Data item : items ) { Api.checkDeadline(); ... }</pre>
+	 * @throws HttpException 504 if the deadline passed
+	 */
+	public static void checkDeadline()
+	{
+		Deadline.check();
+	}
+	
 	/**
 	 * Executes the specified function atomically against a single instance-wide lock.
 	 * <p>
@@ -547,14 +984,15 @@ public class Api extends Entity
 	 * is deliberate, so the block can safely read and write state that is itself shared across
 	 * endpoints (such as {@link State} values or a storage). Because it
 	 * serialises the whole instance, keep the block as short as possible and avoid slow I/O inside it.
+	 * Use {@link #atomic(String, Runnable)} for state that only needs to be consistent per key.
+	 * <p>
+	 * This block cannot be nested in a keyed {@code atomic()} block.
 	 * @param operation the function to run
 	 * @throws Exception if anything happens
 	 */
 	public static void atomic(Runnable operation) throws Exception
 	{
-		atomicLock.lock();
-		try { operation.run(); }
-		finally { atomicLock.unlock(); }
+		Locks.global(() -> { operation.run(); return null; });
 	}
 	
 	/**
@@ -565,6 +1003,9 @@ public class Api extends Entity
 	 * is deliberate, so the block can safely read and write state that is itself shared across
 	 * endpoints (such as {@link State} values or a storage). Because it
 	 * serialises the whole instance, keep the block as short as possible and avoid slow I/O inside it.
+	 * Use {@link #atomic(String, Supplier)} for state that only needs to be consistent per key.
+	 * <p>
+	 * This block cannot be nested in a keyed {@code atomic()} block.
 	 * @param <T> the function return type
 	 * @param operation the function to run and get the response
 	 * @return the value returned by {@code operation}
@@ -572,21 +1013,153 @@ public class Api extends Entity
 	 */
 	public static <T> T atomic(Supplier<T> operation) throws Exception
 	{
-		atomicLock.lock();
-		try { return operation.get(); }
-		finally { atomicLock.unlock(); }
+		return Locks.global(operation);
+	}
+	
+	/**
+	 * Executes the specified function atomically with respect to the other blocks using the same key.
+	 * <p>
+	 * Blocks on different keys run in parallel, except in the rare case where their keys share a lock
+	 * stripe. Blocks on the same key, and the instance-wide {@link #atomic(Runnable)} blocks, wait their turn.
+	 * Avoid nesting blocks on different keys, two blocks nesting them in opposite order would deadlock.
+	 * @param key the lock key, such as the name of the {@link State} entry being updated, or null to lock the whole instance
+	 * @param operation the function to run
+	 * @throws Exception if anything happens
+	 */
+	public static void atomic(String key, Runnable operation) throws Exception
+	{
+		atomic(key, () -> { operation.run(); return null; });
 	}
 	
+	/**
+	 * Executes the specified function atomically with respect to the other blocks using the same key and returns its result.
+	 * <p>
+	 * Blocks on different keys run in parallel, except in the rare case where their keys share a lock
+	 * stripe. Blocks on the same key, and the instance-wide {@link #atomic(Supplier)} blocks, wait their turn.
+	 * Avoid nesting blocks on different keys, two blocks nesting them in opposite order would deadlock.
+	 * @param <T> the function return type
+	 * @param key the lock key, such as the name of the {@link State} entry being updated, or null to lock the whole instance
+	 * @param operation the function to run and get the response
+	 * @return the value returned by {@code operation}
+	 * @throws Exception if anything happens
+	 */
+	public static <T> T atomic(String key, Supplier<T> operation) throws Exception
+	{
+		if( key == null ) return Locks.global(operation);
+		return Locks.keyed(key, true, operation);
+	}
+	
+	/**
+	 * Executes the specified function while no {@link #atomic(String, Runnable)} block runs on the same key.
+	 * Read blocks on the same key run in parallel, so use this to read several related values consistently.
+	 * <p>
+	 * A read block cannot be upgraded: calling {@code atomic()} on the same key from within it fails.
+	 * @param key the lock key, or null to lock the whole instance
+	 * @param operation the function to run
+	 * @throws Exception if anything happens
+	 */
+	public static void atomicRead(String key, Runnable operation) throws Exception
+	{
+		atomicRead(key, () -> { operation.run(); return null; });
+	}
+	
+	/**
+	 * Executes the specified function while no {@link #atomic(String, Supplier)} block runs on the same key and returns its result.
+	 * Read blocks on the same key run in parallel, so use this to read several related values consistently.
+	 * <p>
+	 * A read block cannot be upgraded: calling {@code atomic()} on the same key from within it fails.
+	 * @param <T> the function return type
+	 * @param key the lock key, or null to lock the whole instance
+	 * @param operation the function to run and get the response
+	 * @return the value returned by {@code operation}
+	 * @throws Exception if anything happens
+	 */
+	public static <T> T atomicRead(String key, Supplier<T> operation) throws Exception
+	{
+		if( key == null ) return Locks.global(operation);
+		return Locks.keyed(key, false, operation);
+	}
+	
+	/**
+	 * The priority of background work, see {@link #defer(Supplier, Priority)}
+	 */
+	public static enum Priority { HIGH, NORMAL, LOW }
+	
+	/**
+	 * Executes the specified function in the background
+	 * @param operation the function to run
+	 */
+	public static void defer(Runnable operation) { defer(operation, Priority.NORMAL); }
+	
 	/**
 	 * Executes the specified function in the background
 	 * @param operation the function to run
+	 * @param priority the priority of the function among the background work of the workspace
+	 */
+	public static void defer(Runnable operation, Priority priority)
+	{
+		defer(() -> { operation.run(); return null; }, priority);
+	}
+	
+	/**
+	 * Executes the specified function in the background and returns its future result
+	 * @param <T> the function return type
+	 * @param operation the function to run
+	 * @return the future result of the function
 	 */
-	public static void defer(Runnable operation)
+	public static <T> CompletableFuture<T> defer(Supplier<T> operation) { return defer(operation, Priority.NORMAL); }
+	
+	/**
+	 * Executes the specified function in the background and returns its future result.
+	 * <pre>Api.defer(() -&gt; audit(data), Api.Priority.LOW);</pre>
+	 * The function runs on the workers of the workspace of the calling endpoint, with the same user and
+	 * endpoint context. The background work of a workspace is bounded by the <code>defer.*</code>
+	 * configuration: when the queue is full, the result fails with HTTP 503, or the function runs on the
+	 * calling thread if the overflow policy is <code>caller</code>. Failures are logged.
+	 * @param <T> the function return type
+	 * @param operation the function to run
+	 * @param priority the priority of the function among the background work of the workspace
+	 * @return the future result of the function
+	 */
+	public static <T> CompletableFuture<T> defer(Supplier<T> operation, Priority priority)
 	{
-		Manager.of(Executor.class).normal(operation).or(e -> 
+		final String api = State.api.get();
+		final User.Type user = State.user.get();
+		CompletableFuture<T> future = WorkQueue.of(RouteTable.get().workspace(api)).submit(priority == null ? 1 : priority.ordinal(),
+			() -> State.run(api, user, operation));
+		future.whenComplete((result, error) ->
 		{
-			Manager.of(Logger.class).warning(Api.class, e);
+			if( error == null ) return;
+			// rejections and cancellations are expected under load, they are counted by the queue
+			if( error instanceof CancellationException || (error instanceof HttpException && ((HttpException) error).code == 503) )
+				Manager.of(Logger.class).log(Logger.FINER, Api.class, "Deferred work not run: {}", error.getMessage());
+			else
+				Manager.of(Logger.class).warning(Api.class, error instanceof Exception ? (Exception) error : new Exception(error));
 		});
+		return future;
+	}
+	
+	/**
+	 * Returns the named batch of the workspace, creating it if needed.
+	 * <pre>Api.batch("hits", 1000, 500, Batch.toStorage("logs", "hits/")).add(data);</pre>
+	 * Items added by the concurrent calls of the endpoints of the workspace are buffered and passed to the
+	 * flush function together, once there are {@code maxSize} of them or once the oldest one waited for
+	 * {@code lingerMillis}. See {@link Batch#toDatabase(String, String, Function)} and
+	 * {@link Batch#toStorage(String, String)} for the usual bulk writes.
+	 * The settings and flush function of the latest call apply, so a redeployed endpoint updates its batch.
+	 * @param <T> the item type
+	 * @param name the batch name
+	 * @param maxSize the maximum number of items per flush
+	 * @param lingerMillis the longest time an item waits for the batch to fill, in milliseconds
+	 * @param flush the function that writes the items
+	 * @return the batch
+	 */
+	public static <T> Batch<T> batch(String name, int maxSize, long lingerMillis, aeonics.util.Functions.Consumer<List<T>> flush)
+	{
+		if( name == null || name.isBlank() ) throw new HttpException(422, "The batch name is invalid");
+		if( flush == null ) throw new HttpException(422, "The batch flush function is not valid");
+		String workspace = RouteTable.get().workspace(State.api.get());
+		return Batch.of((workspace == null ? "" : workspace) + "/" + name, maxSize, lingerMillis, flush);
 	}
 	
 	/**
@@ -625,22 +1198,34 @@ public class Api extends Entity
 	}
 	
 	/**
-	 * Increments the hit counter for the specified metric
+	 * Increments the hit counter for the specified metric.
+	 * The hits are reported to the monitor every second under the metric name followed by <code>.count</code>.
+	 * <p>
+	 * <b>Breaking change:</b> each hit used to be added to the monitor on its own. The monitor now receives
+	 * at most one sample per second and per metric, so consumers that counted the monitor samples of a
+	 * metric must read its <code>.count</code> series instead.
 	 * @param name the metric name
 	 */
 	public static void metrics(String name)
 	{
-		Manager.of(Monitor.class).add("uniqorn", "custom", Monitor.UNSPECIFIED, name, 0);
+		Metrics.add(Globals.MONITOR_TYPE_CUSTOM, Monitor.UNSPECIFIED, name, 0);
 	}
 	
 	/**
-	 * Increases the value of the specified metric by the given value
+	 * Increases the value of the specified metric by the given value.
+	 * The sum of the values is reported to the monitor every second under the metric name, and the number
+	 * of hits under the metric name followed by <code>.count</code>.
+	 * <p>
+	 * <b>Breaking change:</b> each value used to be added to the monitor on its own. The monitor now receives
+	 * the sum of the values of the last second as a single sample, so averages or minimums computed by the
+	 * monitor over that series are per second rather than per call. Divide by the <code>.count</code> series
+	 * to get the mean value of a call.
 	 * @param name the metric name
 	 * @param value the value
 	 */
 	public static void metrics(String name, long value)
 	{
-		Manager.of(Monitor.class).add("uniqorn", "custom", Monitor.UNSPECIFIED, name, value);
+		Metrics.add(Globals.MONITOR_TYPE_CUSTOM, Monitor.UNSPECIFIED, name, value);
 	}
 	
 	/**
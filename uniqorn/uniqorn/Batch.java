@@ -0,0 +1,385 @@
+package uniqorn;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import aeonics.data.Data;
+import aeonics.entity.Database;
+import aeonics.entity.Storage;
+import aeonics.http.HttpException;
+import aeonics.manager.Logger;
+import aeonics.manager.Manager;
+import aeonics.manager.Timeout;
+import aeonics.manager.Timeout.Tracker;
+import aeonics.util.Functions.Consumer;
+import aeonics.util.Functions.Function;
+import uniqorn.internal.Deadline;
+import uniqorn.internal.Globals;
+import uniqorn.internal.Metrics;
+
+/**
+ * Collects items from many concurrent requests and writes them in bulk.
+ * <p>
+ * A batch is created or fetched by name with {@link Api#batch(String, int, long, Consumer)} and shared by
+ * every call of the endpoints of the workspace. The flush function receives the buffered items once the
+ * batch holds its maximum size, or once the oldest item waited for the linger time, whichever comes first.
+ * Flushes of a batch run one at a time in the background, in the order the items were added, on a small
+ * pool of threads shared by every batch.
+ * <pre>
+ * Api.batch("events", 500, 200, Batch.toDatabase("main", "INSERT INTO events(name, at) VALUES(?, ?)",
+ *     (Data e) -&gt; new Object[] { e.asString("name"), e.asLong("at") })).add(event);
+ * </pre>
+ * The buffer holds up to four times the maximum size. When it is full, adding waits for a flush to make
+ * room and fails with HTTP 503 if none does in time, so a slow database pushes back on the callers rather
+ * than exhausting the memory. Items of a failed flush are logged and dropped.
+ * @param <T> the item type
+ */
+public class Batch<T>
+{
+	private static final ConcurrentHashMap<String, Batch<?>> batches = new ConcurrentHashMap<>();
+	private static final AtomicLong sequence = new AtomicLong(0);
+	// the threads that flush batches, a batch waits in the queue when they are all busy
+	private static final int FLUSHERS = 8;
+	// the flushes a batch runs in a row before it lets the other batches have a thread
+	private static final int ROUNDS = 16;
+	// flushes run on their own threads, never on a request thread, and a batch flushes one at a time,
+	// so the queue never holds more than one task per batch
+	private static final ThreadPoolExecutor flusher = new ThreadPoolExecutor(FLUSHERS, FLUSHERS, 60, TimeUnit.SECONDS,
+		new LinkedBlockingQueue<>(), r ->
+		{
+			Thread t = new Thread(r, "uniqorn-batch");
+			t.setDaemon(true);
+			return t;
+		});
+	
+	static
+	{
+		flusher.allowCoreThreadTimeOut(true);
+	}
+
+	static
+	{
+		Manager.of(Timeout.class).watch(new Tracker<Void>("Uniqorn Batch Linger")
+		{
+			public long delay()
+			{
+				long now = System.nanoTime();
+				long next = 100;
+				for( Batch<?> b : batches.values() )
+					next = Math.min(next, b.linger(now));
+				return Math.max(5, next);
+			}
+		});
+	}
+
+	private final String key;
+	private volatile int maxSize;
+	private volatile long linger;
+	private volatile Consumer<List<T>> flush;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private final ArrayList<T> buffer = new ArrayList<>();
+	// when the oldest buffered item was added
+	private long first = 0;
+	private final AtomicBoolean flushing = new AtomicBoolean(false);
+	private final LongAdder flushed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	private Batch(String key)
+	{
+		this.key = key;
+	}
+
+	/**
+	 * Returns the batch of the specified key, creating it if needed, with the latest settings
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> Batch<T> of(String key, int maxSize, long lingerMillis, Consumer<List<T>> flush)
+	{
+		Batch<T> b = (Batch<T>) batches.get(key);
+		if( b == null ) b = (Batch<T>) batches.computeIfAbsent(key, Batch::new);
+		// a redeployed endpoint brings a new flush function
+		b.maxSize = Math.max(1, maxSize);
+		b.linger = Math.max(0, lingerMillis);
+		b.flush = flush;
+		return b;
+	}
+
+	/**
+	 * Flushes and forgets the batches of a workspace
+	 */
+	static void forget(String workspace)
+	{
+		String prefix = workspace + "/";
+		for( String key : batches.keySet() )
+		{
+			if( !key.startsWith(prefix) ) continue;
+			Batch<?> b = batches.remove(key);
+			if( b != null ) b.flush();
+		}
+	}
+
+	/**
+	 * Returns the usage of the batches of a workspace
+	 * @param workspace the workspace name
+	 * @return the statistics of each batch by name
+	 * @hidden
+	 */
+	public static Data stats(String workspace)
+	{
+		String prefix = workspace + "/";
+		Data stats = Data.map();
+		for( java.util.Map.Entry<String, Batch<?>> e : batches.entrySet() )
+			if( e.getKey().startsWith(prefix) )
+				stats.put(e.getKey().substring(prefix.length()), e.getValue().stats());
+		return stats;
+	}
+
+	/**
+	 * Adds an item, waiting for room if the buffer is full
+	 * @param item the item
+	 * @throws HttpException 503 if the buffer stays full for more than the linger time plus one second,
+	 * 		or 504 if the deadline of the call passes first
+	 */
+	public void add(T item)
+	{
+		if( !offer(item, linger + 1_000) )
+			throw new HttpException(503, "The batch is full, please retry later");
+	}
+
+	/**
+	 * Adds an item, waiting for room if the buffer is full
+	 * @param item the item
+	 * @param timeoutMillis the longest to wait for room in milliseconds, the deadline of the call may cut it short
+	 * @return true if the item was added, false if the buffer stayed full
+	 * @throws HttpException 504 if the deadline of the call passes while waiting
+	 */
+	public boolean offer(T item, long timeoutMillis)
+	{
+		long remaining = Deadline.remaining();
+		boolean bounded = remaining < timeoutMillis;
+		int size;
+		lock.lock();
+		try
+		{
+			long wait = TimeUnit.MILLISECONDS.toNanos(Math.min(timeoutMillis, remaining));
+			while( buffer.size() >= 4 * maxSize )
+			{
+				if( wait <= 0 )
+				{
+					if( bounded ) throw Deadline.expired();
+					rejected.increment();
+					Metrics.add(Globals.MONITOR_TYPE_BATCH, key, "rejected", 0);
+					return false;
+				}
+				wait = notFull.awaitNanos(wait);
+			}
+			if( buffer.isEmpty() ) first = System.nanoTime();
+			buffer.add(item);
+			size = buffer.size();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new HttpException(503, "The request was interrupted while waiting for the batch");
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		if( size >= maxSize ) schedule();
+		return true;
+	}
+
+	/**
+	 * Writes the buffered items now, in the background
+	 */
+	public void flush()
+	{
+		lock.lock();
+		try { if( !buffer.isEmpty() ) first -= TimeUnit.MILLISECONDS.toNanos(linger); }
+		finally { lock.unlock(); }
+		schedule();
+	}
+
+	/**
+	 * The number of buffered items
+	 * @return the number of items waiting to be flushed
+	 */
+	public int size()
+	{
+		lock.lock();
+		try { return buffer.size(); }
+		finally { lock.unlock(); }
+	}
+
+	/**
+	 * Returns the usage of the batch
+	 * @return the batch statistics
+	 */
+	public Data stats()
+	{
+		return Data.map()
+			.put("buffered", size())
+			.put("flushed", flushed.sum())
+			.put("failed", failed.sum())
+			.put("rejected", rejected.sum());
+	}
+
+	// the time in milliseconds before the oldest item is due, schedules a flush if it is
+	private long linger(long now)
+	{
+		long remaining;
+		lock.lock();
+		try
+		{
+			if( buffer.isEmpty() ) return Long.MAX_VALUE;
+			remaining = linger - TimeUnit.NANOSECONDS.toMillis(now - first);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		if( remaining <= 0 ) schedule();
+		return Math.max(0, remaining);
+	}
+
+	private boolean due()
+	{
+		return !buffer.isEmpty() && (buffer.size() >= maxSize || System.nanoTime() - first >= TimeUnit.MILLISECONDS.toNanos(linger));
+	}
+
+	private void schedule()
+	{
+		// one flush at a time keeps the items in order
+		if( !flushing.compareAndSet(false, true) ) return;
+		flusher.execute(this::drain);
+	}
+
+	private void drain()
+	{
+		try
+		{
+			for( int round = 0; round < ROUNDS; round++ )
+			{
+				List<T> items;
+				lock.lock();
+				try
+				{
+					if( !due() ) break;
+					int n = Math.min(maxSize, buffer.size());
+					items = new ArrayList<>(buffer.subList(0, n));
+					buffer.subList(0, n).clear();
+					notFull.signalAll();
+				}
+				finally
+				{
+					lock.unlock();
+				}
+
+				long start = System.nanoTime();
+				try
+				{
+					flush.accept(items);
+					flushed.add(items.size());
+					Metrics.add(Globals.MONITOR_TYPE_BATCH, key, "flush", System.nanoTime() - start);
+				}
+				catch(Exception e)
+				{
+					failed.add(items.size());
+					Metrics.add(Globals.MONITOR_TYPE_BATCH, key, "failed", System.nanoTime() - start);
+					Manager.of(Logger.class).warning(Batch.class, "Batch {} dropped {} items after a failed flush", key, items.size());
+					Manager.of(Logger.class).warning(Batch.class, e);
+				}
+			}
+		}
+		finally
+		{
+			flushing.set(false);
+		}
+
+		// items that became due while the flag was still set, or left after the last round
+		lock.lock();
+		boolean again;
+		try { again = due(); }
+		finally { lock.unlock(); }
+		if( again ) schedule();
+	}
+
+	/**
+	 * Returns a flush function that inserts the items into a database with one batched statement in a single transaction
+	 * @param <T> the item type
+	 * @param database the database name
+	 * @param sql the statement with its <code>?</code> placeholders
+	 * @param parameters returns the placeholder values of an item
+	 * @return the flush function
+	 */
+	public static <T> Consumer<List<T>> toDatabase(String database, String sql, Function<T, Object[]> parameters)
+	{
+		return items ->
+		{
+			Database.Type db = Api.database(database);
+			if( db == null ) throw new IllegalStateException("Unknown database " + database);
+			try( Connection c = db.connection() )
+			{
+				boolean auto = c.getAutoCommit();
+				c.setAutoCommit(false);
+				try( PreparedStatement s = c.prepareStatement(sql) )
+				{
+					for( T item : items )
+					{
+						Object[] values = parameters.apply(item);
+						for( int i = 0; i < values.length; i++ )
+							s.setObject(i + 1, values[i]);
+						s.addBatch();
+					}
+					s.executeBatch();
+					c.commit();
+				}
+				catch(Exception e)
+				{
+					c.rollback();
+					throw e;
+				}
+				finally
+				{
+					c.setAutoCommit(auto);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns a flush function that writes the items to a storage, one JSON line per item and one file per flush
+	 * @param <T> the item type
+	 * @param storage the storage name
+	 * @param prefix the path prefix of the files, followed by the flush time and a sequence number
+	 * @return the flush function
+	 */
+	public static <T> Consumer<List<T>> toStorage(String storage, String prefix)
+	{
+		return items ->
+		{
+			Storage.Type s = Api.storage(storage);
+			if( s == null ) throw new IllegalStateException("Unknown storage " + storage);
+			StringBuilder lines = new StringBuilder();
+			for( T item : items )
+				lines.append(Data.of(item).toString()).append('\n');
+			s.put(prefix + System.currentTimeMillis() + "-" + sequence.incrementAndGet() + ".jsonl", lines.toString().getBytes(StandardCharsets.UTF_8));
+		};
+	}
+}
@@ -20,6 +20,8 @@ import aeonics.util.Internal;
 import aeonics.git.Bare;
 import aeonics.git.GitRepo;
 import aeonics.util.StringUtils;
+import uniqorn.internal.Metrics;
+import uniqorn.internal.RouteTable;
 
 public class Endpoint extends Item<Endpoint.Type>
 {
@@ -52,7 +54,8 @@ public class Endpoint extends Item<Endpoint.Type>
 
 		private AtomicLong counter = new AtomicLong(0);
 		/**
-		 * Returns the internal call counter
+		 * Returns the internal call counter, the total number of calls routed to this endpoint.
+		 * Rate limiting is handled by {@link uniqorn.internal.RateLimiter}.
 		 * @return the call counter
 		 */
 		@Internal
@@ -60,7 +63,11 @@ public class Endpoint extends Item<Endpoint.Type>
 
 		private Api api = null;
 		public Api api() { return api; }
-		public void api(Api api) { this.api = api; }
+		public void api(Api api)
+		{
+			this.api = api;
+			if( api != null ) api.source(valueOf("path").asString());
+		}
 
 		private static GitRepo.Type repo()
 		{
@@ -74,9 +81,13 @@ public class Endpoint extends Item<Endpoint.Type>
 		{
 			if( api != null )
 			{
+				if( api.cache() != null ) api.cache().clear();
+				State.drop(api.source());
 				Registry.of(StringUtils.toLowerCase(Api.class)).remove(api.id());
 				api = null;
 			}
+			Metrics.forget(id());
+			RouteTable.invalidate();
 		}
 
 		@Override
@@ -164,10 +175,17 @@ public class Endpoint extends Item<Endpoint.Type>
 			// carry the previous compiled endpoint id onto the freshly recompiled one
 			String previousApiId = ( api != null && api.api() != null ) ? api.api().id() : null;
 			if( api != null )
+			{
+				// responses of the previous version must not be served anymore
+				if( api.cache() != null ) api.cache().clear();
 				Registry.of(StringUtils.toLowerCase(Api.class)).remove(api.id());
+			}
 			api = Registry.of(StringUtils.toLowerCase(Api.class)).get(id);
+			// the state survives redeployments and restarts under the source path
+			if( api != null ) api.source(valueOf("path").asString());
 			if( previousApiId != null && api != null && api.api() != null )
 				api.api().id(previousApiId);
+			RouteTable.invalidate();
 
 			// ======================
 			// THEN CLEANUP THE DYNAMIC
@@ -1,23 +1,35 @@
 package uniqorn;
 
+import java.util.Map;
 import java.util.Objects;
 
 import aeonics.data.Data;
-import aeonics.entity.Entity;
 import aeonics.entity.Message;
 import aeonics.entity.Registry;
 import aeonics.entity.security.User;
 import aeonics.http.HttpException;
 import aeonics.manager.Logger;
 import aeonics.manager.Manager;
-import aeonics.manager.Monitor;
-import aeonics.util.Tuples.Tuple;
+import uniqorn.internal.ETags;
 import uniqorn.internal.Globals;
+import uniqorn.internal.Metrics;
+import uniqorn.internal.RateLimiter;
+import uniqorn.internal.ResponseCache;
+import uniqorn.internal.RouteTable;
 
 public class Router extends aeonics.http.Endpoint
 {
+	/**
+	 * Cap on the total number of calls of each endpoint since startup, above which calls fail with HTTP 429.
+	 */
 	public static long limit = 0;
 	
+	/**
+	 * Default sustained call rate per second of each endpoint, used when the
+	 * <code>ratelimit.endpoint.rate</code> configuration is not set. Zero or less disables it.
+	 */
+	public static double rate = 0;
+	
 	public static class Type extends aeonics.http.Endpoint.Type
 	{
 		private String prefix = "";
@@ -42,88 +54,210 @@ public class Router extends aeonics.http.Endpoint
 			String method = request.content().asString("method");
 			String path = request.content().asString("path").substring(prefix().length());
 			User.Type user = Objects.requireNonNullElse(Registry.of(User.class).get(request.user()), User.ANONYMOUS);
+			String ip = request.connection() == null ? null : request.connection().clientIp();
 
 			Manager.of(Logger.class).log(Logger.FINER, Api.class, "{} {}{} call from {} authenticated as {}", 
 				method,
 				prefix(),
 				path,
-				request.connection() == null ? "0.0.0.0" : request.connection().clientIp(),
+				ip == null ? "0.0.0.0" : ip,
 				user.login());
 			
-			long start = System.nanoTime();
-			long stop = start;
-			int code = 200;
+			RouteTable.Route route = RouteTable.get().lookup(method, path);
+			if( route == null )
+			{
+				HttpException e = new HttpException(404);
+				Manager.of(Logger.class).log(Logger.FINER, Api.class, e);
+				Metrics.request(null, null, path, user.login(), e.code, 0);
+				throw e;
+			}
+			return dispatch(route, request, method, path, user, ip, true);
+		}
+	}
+	
+	/**
+	 * Dispatches a chained call to a uniqorn endpoint without going through the http stack.
+	 * The endpoint still enforces its rate limits, access rules, parameters and concurrency limit,
+	 * and its entity tags and response cache still apply.
+	 */
+	static Data chain(RouteTable.Route route, String url, String method, String path, Data data, User.Type user) throws Exception
+	{
+		Message request = new Message(url)
+			.content(Data.map().put("method", method).put("path", path).put("get", data))
+			.user(user.id());
+		return dispatch(route, request, method, path, user, null, false);
+	}
+	
+	// runs a call routed to a uniqorn endpoint, from the http stack or chained by another endpoint. Requests
+	// that reach the router without a connection, such as those of the mcp server, are not chained calls.
+	private static Data dispatch(RouteTable.Route route, Message request, String method, String path, User.Type user, String ip, boolean external) throws Exception
+	{
+		uniqorn.Endpoint.Type e = route.endpoint();
+		long start = System.nanoTime();
+		long stop = start;
+		int code = 200;
+		boolean authorized = false;
+		Object grant = null;
+		
+		try
+		{
+			if( e.counter().incrementAndGet() > limit )
+				throw new HttpException(429, "Call rate limit exceeded");
+			long wait = RateLimiter.acquire(e.id(), user, ip, path);
+			if( wait > 0 )
+			{
+				code = 429;
+				return RateLimiter.reject(wait);
+			}
+			
+			Api a = e.api();
+			if( a == null ) throw new HttpException(404); // race condition
+			aeonics.http.Endpoint.Rest.Type r = a.api();
+			if( r == null ) throw new HttpException(404); // race condition
 			
-			try
+			String relative = path.substring(route.prefix().length());
+			request.content().put("path", relative);
+			
+			boolean get = "GET".equalsIgnoreCase(method);
+			ResponseCache cache = a.cache();
+			
+			// the access rules run once, before a cached or not modified response is returned
+			if( get && (a.etags() || cache != null) )
+			{
+				grant = a.authorize(user);
+				authorized = true;
+			}
+			
+			// answer 304 from the version key before running the endpoint
+			String version = null;
+			if( get && a.etags() )
 			{
-				for( Workspace.Type w : Registry.of(Workspace.class) )
+				version = a.versionTag(relative, request.content().get("get"), user);
+				if( version != null && ETags.matches(ETags.header(request.content().get("headers"), "If-None-Match"), version) )
 				{
-					String workspacePrefix = w.valueOf("prefix").asString();
-					if( !path.startsWith(workspacePrefix + "/") ) continue;
-					for( Tuple<Entity, Data> t : w.relations("endpoints") )
-					{
-						if( t == null || t.a == null || !t.a.valueOf("enabled").asBool() ) continue;
-						if( !t.a.<uniqorn.Endpoint.Type>cast().matches(method, path.substring(workspacePrefix.length())) ) continue;
-						
-						uniqorn.Endpoint.Type e = t.a.cast();
-						if( e.counter().incrementAndGet() > limit )
-							throw new HttpException(429, "Call rate limit exceeded");
-						
-						Api a = e.api();
-						if( a == null ) throw new HttpException(404); // race condition
-						aeonics.http.Endpoint.Rest.Type r = a.api();
-						if( r == null ) throw new HttpException(404); // race condition
-						
-						request.content().put("path", path.substring(workspacePrefix.length()));
-						
-						Data response = null;
-						try
-						{
-							response = r.process(request);
-							if( response.isMap() && response.asBool("isHttpResponse") )
-							{
-								if( response.isEmpty("code") )
-									code = response.isEmpty("body") ? 204 : 200;
-								else
-									code = response.asInt("code");
-							}
-							else
-								code = response.isEmpty() ? 204 : 200;
-							
-							return response;
-						}
-						finally
-						{
-							stop = System.nanoTime();
-						}
-					}
+					code = 304;
+					stop = System.nanoTime();
+					return notModified(version);
 				}
-				throw new HttpException(404);
 			}
-			catch(Throwable e)
+			
+			// serve from the response cache before running the endpoint
+			String key = null;
+			if( cache != null && get )
+			{
+				key = a.cacheKey(relative, request.content().get("get"), user);
+				// a response cached under a previous version is stale
+				ResponseCache.Entry cached = cache.get(key, version);
+				Metrics.add(Globals.MONITOR_TYPE_CACHE, path, cached == null ? "miss" : "hit", 0);
+				if( cached != null )
+				{
+					// the cached response is shared, chained callers get their own copy
+					Data response = conditional(request, external ? cached.response() : ResponseCache.copy(cached.response()), cached.etag());
+					code = code(response);
+					stop = System.nanoTime();
+					return response;
+				}
+			}
+			
+			Data response = null;
+			try
 			{
-				if( e instanceof HttpException )
-					code = ((HttpException)e).code;
-				else
-					code = 500;
+				response = r.process(request);
+				code = code(response);
+				if( get && code == 200 )
+				{
+					String tag = etag(response, version, a.etags());
+					response = tagged(response, tag);
+					if( key != null )
+						cache.put(key, response, tag, version);
+					response = conditional(request, response, tag);
+					code = code(response);
+				}
 				
-				Manager.of(Logger.class).log(Logger.FINER, Api.class, e);
-				throw e;
+				return response;
 			}
 			finally
 			{
-				Manager.of(Monitor.class).add(
-					Globals.MONITOR_CATEGORY, 
-					Globals.MONITOR_TYPE_ENDPOINT, 
-					path, 
-					""+code, stop-start);
-				Manager.of(Monitor.class).add(
-					Globals.MONITOR_CATEGORY, 
-					Globals.MONITOR_TYPE_USER, 
-					user.login(), 
-					""+code, stop-start);
+				stop = System.nanoTime();
 			}
 		}
+		catch(Throwable t)
+		{
+			if( t instanceof HttpException )
+				code = ((HttpException)t).code;
+			else
+				code = 500;
+			
+			Manager.of(Logger.class).log(Logger.FINER, Api.class, t);
+			throw t;
+		}
+		finally
+		{
+			if( authorized ) Api.revoke(grant);
+			Metrics.request(e.id(), route.workspace().name(), path, user.login(), code, stop-start);
+		}
+	}
+	
+	private static int code(Data response)
+	{
+		if( response.isMap() && response.asBool("isHttpResponse") )
+		{
+			if( response.isEmpty("code") )
+				return response.isEmpty("body") ? 204 : 200;
+			else
+				return response.asInt("code");
+		}
+		else
+			return response.isEmpty() ? 204 : 200;
+	}
+	
+	// the entity tag of a successful response: the one set by the handler, else the version tag or a content hash
+	private static String etag(Data response, String tag, boolean enabled)
+	{
+		boolean http = response.isMap() && response.asBool("isHttpResponse");
+		if( http )
+		{
+			String own = ETags.header(response.get("headers"), "ETag");
+			if( own != null ) return own;
+		}
+		if( !enabled ) return null;
+		
+		if( tag == null )
+			tag = ETags.of(http ? response.get("body") : response);
+		return tag;
+	}
+	
+	// an http response with the ETag header, on a copy since the response may be shared with other calls
+	private static Data tagged(Data response, String tag)
+	{
+		if( tag == null || !response.isMap() || !response.asBool("isHttpResponse") ) return response;
+		if( tag.equals(ETags.header(response.get("headers"), "ETag")) ) return response;
+		
+		Data copy = Data.map();
+		for( Map.Entry<String, Data> e : response.entrySet() )
+			copy.put(e.getKey(), e.getValue());
+		Data headers = Data.map();
+		if( response.get("headers").isMap() )
+			for( Map.Entry<String, Data> e : response.get("headers").entrySet() )
+				headers.put(e.getKey(), e.getValue());
+		copy.put("headers", headers.put("ETag", tag));
+		return copy;
+	}
+	
+	// answers 304 if the client already has the tagged response, else the response as the handler shaped it
+	private static Data conditional(Message request, Data response, String tag)
+	{
+		if( tag != null && ETags.matches(ETags.header(request.content().get("headers"), "If-None-Match"), tag) )
+			return notModified(tag);
+		return response;
+	}
+	
+	private static Data notModified(String tag)
+	{
+		return Data.map()
+			.put("isHttpResponse", true)
+			.put("code", 304)
+			.put("headers", Data.map().put("ETag", tag));
 	}
 	
 	protected Class<? extends Router.Type> defaultTarget() { return Router.Type.class; }
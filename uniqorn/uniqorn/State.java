@@ -1,68 +1,793 @@
 package uniqorn;
 
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
+import aeonics.data.Data;
+import aeonics.entity.Registry;
+import aeonics.entity.Storage;
 import aeonics.entity.security.User;
+import aeonics.manager.Config;
 import aeonics.manager.Logger;
 import aeonics.manager.Manager;
 import aeonics.manager.Timeout;
 import aeonics.manager.Timeout.Tracker;
-import aeonics.util.Tuples.Tuple;
+import aeonics.util.Json;
+import aeonics.util.Functions.Function;
+import aeonics.util.Functions.Supplier;
+import uniqorn.internal.FrequencySketch;
+import uniqorn.internal.Globals;
+import uniqorn.internal.Metrics;
+import uniqorn.internal.OffHeap;
+import uniqorn.internal.Replication;
+import uniqorn.internal.StateCodec;
+import uniqorn.internal.Weigher;
 
 /**
  * Holds transient in-memory key/value state for endpoints.
  * <p>
  * {@link #local(String) Local} state is scoped to a single endpoint; {@link #global(String) global}
  * state is shared by every endpoint on the instance. Either kind can be bound to a specific
- * {@link User} and given a time-to-live after which it expires. All state lives in memory only and
- * is lost when the instance restarts.
+ * {@link User} and given a time-to-live after which it expires. The state lives in memory and is
+ * lost when the instance restarts, unless snapshots are enabled.
  * <p>
  * Stored values are returned auto-cast to the type the caller expects; reading a value as a type it
  * was not stored as throws a {@link ClassCastException}.
+ * <p>
+ * Read-modify-write sequences do not need an {@code Api.atomic()} block: the compute, compare-and-set
+ * and increment operations update a single entry atomically without locking other entries.
+ * <p>
+ * The state is bounded by the <code>state.*</code> configuration of the instance: a total number of
+ * entries and estimated bytes, and optional quotas per endpoint and per user. When a bound is exceeded,
+ * the least frequently used entries among a small sample are evicted, expired ones first. Evicted
+ * values are simply absent afterwards, so use the state as a cache and not as a system of record.
+ * <p>
+ * Values are stored and returned by reference, except those held off-heap. Changing a mutable value such
+ * as a {@link Data}, an array or a collection after it was stored or read may or may not change the stored
+ * value, depending on where it is held, and never weighs, replicates or snapshots it again. Treat stored
+ * values as immutable and write a new value to change one.
+ * <p>
+ * Large byte arrays, strings and {@link Data} can be held off-heap, see {@link OffHeap}, according to the
+ * <code>state.offheap.*</code> configuration. They are read back transparently, as a fresh copy: every read
+ * allocates and decodes the value again, so off-heap storage suits large values that are read rarely.
+ * A {@link Data} that JSON cannot carry exactly stays on the heap. The off-heap capacity of a value is
+ * given back as soon as it is replaced, removed, expired or evicted.
+ * The compare-and-set functions compare such values by their content rather than by identity.
+ * <p>
+ * The state is partitioned per endpoint and per user, so the entries of a partition can be listed,
+ * counted and cleared without scanning the others. The local state of an endpoint is dropped when
+ * the endpoint is removed. Each partition counts its hits, misses, writes, expirations and evictions,
+ * which are published to the monitor every minute along with its size.
+ * <p>
+ * The local state of an endpoint is keyed by the path of its source file rather than by the id of its
+ * api, which changes with every compilation. It therefore survives redeployments: the new code of the
+ * endpoint finds the values stored by the previous one, including instances of classes the previous code
+ * defined, which the new code can only read as {@link Object}. Renaming or moving the source file starts
+ * from an empty state. The partitions are named after the source path in the metrics as well.
+ * <p>
+ * When the <code>state.snapshot.storage</code> configuration names a <code>uniqorn.storage</code>, the
+ * partitions that changed are written to it periodically along with the expiration of their entries,
+ * and the snapshot is loaded back when the instance starts. A snapshot is one JSON file per partition,
+ * rewritten as a whole at every interval in which the partition changed, so a partition that holds a lot
+ * and changes often costs a full write each time. Partitions larger than the
+ * <code>state.snapshot.max.bytes</code> configuration are not written, and their previous snapshot is
+ * removed. The values are written in plaintext, including those bound to a user: restrict the access to
+ * the storage accordingly. The snapshot of an endpoint that no longer exists, such as one written under
+ * its api id by an earlier version, is loaded and then dropped a few minutes after the start along with
+ * its file. Only strings, numbers, booleans, byte arrays, {@link Data} and counters are written; other
+ * values are kept in memory only. Values written after the last snapshot are lost if the instance stops.
+ * <p>
+ * When the <code>state.replication.*</code> configuration lists peer instances, the changes of the
+ * global state are sent to them, see {@link Replication}. The local state of endpoints is never
+ * replicated, and neither are expirations and evictions since every instance applies them on its own.
  */
 public class State
 {
+	// the partition of the endpoint currently being served on this thread, the path of its source file
 	static ThreadLocal<String> api = ThreadLocal.withInitial(() -> null);
 	// the user currently being served on this thread
 	static ThreadLocal<User.Type> user = ThreadLocal.withInitial(() -> null);
-	private static ConcurrentHashMap<String, Tuple<Object, Long>> store = new ConcurrentHashMap<>();
+	
+	/**
+	 * Runs a task with the specified endpoint and user context and restores the previous one after
+	 */
+	static <T> T run(String api, User.Type user, Supplier<T> task) throws Exception
+	{
+		final String previousApi = State.api.get();
+		final User.Type previousUser = State.user.get();
+		State.api.set(api);
+		State.user.set(user);
+		try
+		{
+			return task.get();
+		}
+		finally
+		{
+			State.api.set(previousApi);
+			State.user.set(previousUser);
+		}
+	}
+	
+	// the partition of the global state, and the bucket of the values bound to no user
+	private static final String GLOBAL = "";
+	private static final String NOBODY = "";
+	private static final int SAMPLES = 8;
+	
+	private static final class Entry
+	{
+		private final Object value;
+		private final long until;
+		private final long weight;
+		// whether the value is weighed and stored off-heap if it has to, see settle()
+		private final boolean settled;
+		// the time of the write and the instance that made it, the most recent write wins over the replicated ones
+		private final long stamp;
+		private final String origin;
+		// the expiry slot this entry is scheduled in
+		private volatile long slot = 0;
+		// whether this entry wins over a write made at the specified time by the specified instance
+		private boolean wins(long stamp, String origin)
+		{
+			return this.stamp != stamp ? this.stamp > stamp : this.origin.compareTo(origin) > 0;
+		}
+		private Entry(String key, Object value, long until)
+		{
+			this(key, value, until, System.currentTimeMillis(), Replication.NODE);
+		}
+		private Entry(String key, Object value, long until, long stamp, String origin)
+		{
+			this.value = value;
+			this.until = until;
+			this.stamp = stamp;
+			this.origin = origin;
+			// entries are built within the compute of their key, only scalars are weighed there
+			this.settled = value == null || value instanceof Number || value instanceof Boolean;
+			this.weight = Weigher.ENTRY + Weigher.weigh(key) + (settled ? Weigher.weigh(value) : 0);
+		}
+		private Entry(Entry entry, Object stored, long weight)
+		{
+			this.value = stored;
+			this.until = entry.until;
+			this.stamp = entry.stamp;
+			this.origin = entry.origin;
+			this.settled = true;
+			this.weight = weight;
+		}
+	}
+	
+	// the entries of one user, or of no user, within a partition
+	private static final class Bucket
+	{
+		private final Partition partition;
+		private final String user;
+		private final int hash;
+		private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+		private final AtomicLong count = new AtomicLong(0);
+		private final AtomicLong bytes = new AtomicLong(0);
+		// set while the sweeper drops the bucket, writers then move their entry to a fresh bucket
+		private volatile boolean retired = false;
+		// eviction cursor, guarded by the evictor lock
+		private Iterator<Map.Entry<String, Entry>> cursor = null;
+		private Bucket(Partition partition, String user)
+		{
+			this.partition = partition;
+			this.user = user;
+			this.hash = partition.id.hashCode() * 31 + user.hashCode();
+		}
+		private int hash(String key) { return hash * 31 + key.hashCode(); }
+	}
+	
+	// the entries of one endpoint, or the global entries
+	private static final class Partition
+	{
+		private final String id;
+		private final String name;
+		private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+		private final AtomicLong count = new AtomicLong(0);
+		private final AtomicLong bytes = new AtomicLong(0);
+		// eviction cursor, guarded by the evictor lock
+		private Iterator<Bucket> cursor = null;
+		// changed since the last snapshot
+		private volatile boolean dirty = false;
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+		private final LongAdder puts = new LongAdder();
+		private final LongAdder expiries = new LongAdder();
+		private final LongAdder evictions = new LongAdder();
+		// the counters last published to the monitor, guarded by the timeout tracker
+		private final long[] published = new long[5];
+		private Partition(String id)
+		{
+			this.id = id;
+			this.name = GLOBAL.equals(id) ? "global" : id;
+		}
+	}
+	
+	// an entry scheduled to be reclaimed, identified by its key and slot since the entry may be replaced meanwhile
+	private static final class Due
+	{
+		private final Bucket bucket;
+		private final String key;
+		private final long slot;
+		private Due(Bucket bucket, String key, long slot)
+		{
+			this.bucket = bucket;
+			this.key = key;
+			this.slot = slot;
+		}
+	}
+	
+	// an eviction candidate
+	private static final class Candidate
+	{
+		private final Bucket bucket;
+		private final String key;
+		private final Entry entry;
+		private final int frequency;
+		private Candidate(Bucket bucket, String key, Entry entry, int frequency)
+		{
+			this.bucket = bucket;
+			this.key = key;
+			this.entry = entry;
+			this.frequency = frequency;
+		}
+	}
+	
+	private static final ConcurrentHashMap<String, Partition> partitions = new ConcurrentHashMap<>();
+	private static final AtomicLong count = new AtomicLong(0);
+	private static final AtomicLong bytes = new AtomicLong(0);
+	private static final FrequencySketch sketch = new FrequencySketch(1 << 16);
+	// the misses of reads on partitions that do not exist
+	private static final LongAdder vacant = new LongAdder();
+	private static final ReentrantLock evictor = new ReentrantLock();
+	// the buckets over a bound and the entry just written in each, left to the thread that holds the evictor lock
+	private static final ConcurrentHashMap<Bucket, Entry> overdue = new ConcurrentHashMap<>();
+	private static Iterator<Partition> cursor = null;
+	// expiry slot time -> entries to reclaim at that time
+	private static final ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<Due>> wheel = new ConcurrentSkipListMap<>();
+	private static volatile long published = 0;
+	
+	// the snapshot files, relative to the storage
+	private static final String SNAPSHOTS = "state/";
+	private static volatile boolean restored = false;
+	private static final long booted = System.currentTimeMillis();
+	// the partitions of the endpoints that do not exist are dropped after this delay, once every endpoint is loaded
+	private static final long GRACE = 300_000;
+	// the snapshot files written or loaded, to remove those of dropped partitions
+	private static final Set<String> saved = ConcurrentHashMap.newKeySet();
+	// set while applying changes that must not be sent to the peers
+	private static final ThreadLocal<Boolean> replaying = ThreadLocal.withInitial(() -> false);
+	
+	// the bounds, refreshed from the configuration; zero or less means no bound
+	private static volatile long maxEntries = 0;
+	private static volatile long maxBytes = 0;
+	private static volatile long endpointEntries = 0;
+	private static volatile long endpointBytes = 0;
+	private static volatile long userEntries = 0;
+	private static volatile long userBytes = 0;
 	
 	static
 	{
 		Manager.of(Timeout.class).watch(new Tracker<Void>("Uniqorn State Timeout Tracker")
 		{
-			private final int max = 60_000; // 1min
+			private final int max = 1_000; // 1s, new entries may be due before the next known slot
 			public long delay()
 			{
 				long now = System.currentTimeMillis();
-				long next = max;
-				Iterator<Map.Entry<String, Tuple<Object, Long>>> i = store.entrySet().iterator();
-				while( i.hasNext() )
+				// only the slots that are due are visited, whatever the number of live entries
+				Map.Entry<Long, ConcurrentLinkedQueue<Due>> slot;
+				while( (slot = wheel.firstEntry()) != null && slot.getKey() <= now )
+				{
+					// writers check that their slot is still scheduled after adding to it
+					wheel.remove(slot.getKey(), slot.getValue());
+					Due d;
+					while( (d = slot.getValue().poll()) != null )
+						reclaim(d, now);
+				}
+				
+				if( now - published >= 60_000 )
 				{
-					Map.Entry<String, Tuple<Object, Long>> entry = i.next(); 
-					Tuple<Object, Long> e = entry.getValue();
-					if( e.b <= (now - max) )
-					{
-						Manager.of(Logger.class).finest(State.class, "Expired state entry: {}", entry.getKey());
-						i.remove();
-					}
-					else
-						next = Math.min(next, e.b + max - now + 1);
+					published = now;
+					Metrics.add(Globals.MONITOR_TYPE_STATE, "store", "entries", count.get());
+					Metrics.add(Globals.MONITOR_TYPE_STATE, "store", "bytes", bytes.get());
+					Metrics.add(Globals.MONITOR_TYPE_STATE, "store", "offheap", OffHeap.used());
+					for( Partition p : partitions.values() )
+						publish(p);
 				}
 				
-				return Math.max(next, 1);
+				Long first = wheel.isEmpty() ? null : wheel.firstKey();
+				return first == null ? max : Math.max(1, Math.min(max, first - now));
+			}
+		});
+		
+		Manager.of(Timeout.class).watch(new Tracker<Void>("Uniqorn State Limits")
+		{
+			public long delay()
+			{
+				Config config = Manager.of(Config.class);
+				maxEntries = config.get(Api.class, "state.max.entries").asLong();
+				maxBytes = config.get(Api.class, "state.max.bytes").asLong();
+				endpointEntries = config.get(Api.class, "state.quota.endpoint.entries").asLong();
+				endpointBytes = config.get(Api.class, "state.quota.endpoint.bytes").asLong();
+				userEntries = config.get(Api.class, "state.quota.user.entries").asLong();
+				userBytes = config.get(Api.class, "state.quota.user.bytes").asLong();
+				OffHeap.configure(config.get(Api.class, "state.offheap.threshold").asLong(), config.get(Api.class, "state.offheap.capacity").asLong());
+				return 5_000;
+			}
+		});
+		
+		Manager.of(Timeout.class).watch(new Tracker<Void>("Uniqorn State Snapshot")
+		{
+			public long delay()
+			{
+				// never overwrite a snapshot that was not loaded yet
+				restore();
+				if( !restored ) return 1_000;
+				if( System.currentTimeMillis() - booted >= GRACE ) prune();
+				
+				Config config = Manager.of(Config.class);
+				String name = config.get(Api.class, "state.snapshot.storage").asString();
+				Storage.Type storage = name == null || name.isBlank() ? null : Api.storage(name);
+				if( storage != null ) snapshot(storage);
+				
+				long interval = config.get(Api.class, "state.snapshot.interval").asLong();
+				return (interval > 0 ? interval : 60) * 1_000;
 			}
 		});
 	}
 	
+	private static String endpoint()
+	{
+		return String.valueOf(api.get());
+	}
+	
+	private static String owner(User.Type user)
+	{
+		return user == null ? NOBODY : user.id();
+	}
+	
+	private static Bucket bucket(String partition, User.Type user, boolean create)
+	{
+		return bucket(partition, owner(user), create);
+	}
+	
+	private static Bucket bucket(String partition, String owner, boolean create)
+	{
+		Partition p = partitions.get(partition);
+		if( p == null )
+		{
+			if( !create ) return null;
+			p = partitions.computeIfAbsent(partition, Partition::new);
+		}
+		Bucket b = p.buckets.get(owner);
+		if( b == null )
+		{
+			if( !create ) return null;
+			final Partition parent = p;
+			b = p.buckets.computeIfAbsent(owner, u -> new Bucket(parent, u));
+		}
+		return b;
+	}
+	
+	/**
+	 * Returns the expiry slot of a deadline. Close deadlines are rounded up to the second, they are
+	 * reclaimed at most one second late. Far deadlines are rounded down to a coarser slot and scheduled
+	 * again from there, so long-lived entries that are rewritten often do not pile up in the schedule.
+	 */
+	private static long slot(long until, long now)
+	{
+		long distance = until - now;
+		if( distance < 64_000 ) return (until / 1_000 + 1) * 1_000;
+		long granularity = distance < 4_096_000 ? 64_000 : 4_096_000;
+		return until / granularity * granularity;
+	}
+	
+	private static void schedule(Bucket b, String key, long slot)
+	{
+		Due due = new Due(b, key, slot);
+		for(;;)
+		{
+			ConcurrentLinkedQueue<Due> queue = wheel.computeIfAbsent(slot, s -> new ConcurrentLinkedQueue<>());
+			queue.add(due);
+			// the sweeper took the slot meanwhile, schedule it again
+			if( wheel.get(slot) == queue ) return;
+			if( !queue.remove(due) ) return;
+		}
+	}
+	
+	private static void reclaim(Due d, long now)
+	{
+		Entry e = d.bucket.entries.get(d.key);
+		// replaced, removed or scheduled elsewhere since
+		if( e == null || e.slot != d.slot ) return;
+		
+		if( e.until <= now )
+		{
+			if( remove(d.bucket, d.key, e) )
+			{
+				Manager.of(Logger.class).finest(State.class, "Expired state entry: {}", d.key);
+				d.bucket.partition.expiries.increment();
+			}
+			return;
+		}
+		
+		// a coarse slot: schedule it again closer to its deadline
+		long next = slot(e.until, now);
+		boolean[] current = { false };
+		d.bucket.entries.computeIfPresent(d.key, (k, x) ->
+		{
+			if( x == e && x.slot == d.slot )
+			{
+				x.slot = next;
+				current[0] = true;
+			}
+			return x;
+		});
+		if( current[0] ) schedule(d.bucket, d.key, next);
+	}
+	
+	// drops an empty bucket, unless a writer raced with it
+	private static void retire(Partition p, Bucket b)
+	{
+		if( b.retired || !b.entries.isEmpty() ) return;
+		b.retired = true;
+		if( b.entries.isEmpty() && p.buckets.remove(b.user, b) ) return;
+		b.retired = false;
+	}
+	
+	private static void touch(Partition p)
+	{
+		// read first, the flag is shared by every writer of the partition
+		if( !p.dirty ) p.dirty = true;
+	}
+	
+	private static void account(Bucket b, long entries, long weight)
+	{
+		if( entries != 0 )
+		{
+			b.count.addAndGet(entries);
+			b.partition.count.addAndGet(entries);
+			count.addAndGet(entries);
+		}
+		if( weight != 0 )
+		{
+			b.bytes.addAndGet(weight);
+			b.partition.bytes.addAndGet(weight);
+			bytes.addAndGet(weight);
+		}
+	}
+	
+	/**
+	 * Applies an update to an entry and keeps the usage accounting in line.
+	 * The remapping function receives the live entry or null, and returns the same entry to leave it
+	 * unchanged, a new entry to replace it, or null to remove it.
+	 * Returns the new entry.
+	 */
+	private static Entry update(String partition, User.Type user, String key, Function<Entry, Entry> remapping)
+	{
+		return update(partition, owner(user), key, remapping);
+	}
+	
+	private static Entry update(String partition, String owner, String key, Function<Entry, Entry> remapping)
+	{
+		final String k = key == null ? "" : key;
+		Bucket b = bucket(partition, owner, true);
+		long[] delta = new long[4];
+		Entry[] replaced = { null };
+		Entry result = b.entries.compute(k, (x, e) ->
+		{
+			long now = System.currentTimeMillis();
+			Entry live = e != null && e.until >= now ? e : null;
+			// a counter is shown to the function as the value it holds now, and keeps its instance when a
+			// whole number replaces it: the increments that race on the striped cells are never lost
+			Counter counter = live != null && live.value instanceof Counter ? (Counter) live.value : null;
+			long observed = counter == null ? 0 : counter.sum();
+			Entry view = counter == null ? live : new Entry(k, observed, live.until, live.stamp, live.origin);
+			Entry next;
+			try { next = remapping.apply(view); }
+			catch(RuntimeException error) { throw error; }
+			catch(Exception error) { throw new Failure(error); }
+			if( next != null && next == view ) return e;
+			if( counter != null && next != null && whole(next.value) )
+			{
+				counter.add(((Number) next.value).longValue() - observed);
+				next = new Entry(k, counter, next.until, next.stamp, next.origin);
+			}
+			// dropping an entry that already expired is not a change
+			if( live != null || next != null ) delta[3] = 1;
+			replaced[0] = e;
+			delta[0] = (next == null ? 0 : 1) - (e == null ? 0 : 1);
+			delta[1] = (next == null ? 0 : next.weight) - (e == null ? 0 : e.weight);
+			if( next != null && next.until != Long.MAX_VALUE )
+			{
+				next.slot = slot(next.until, now);
+				// the previous entry is already scheduled in that slot, which resolves by key
+				if( e == null || e.slot != next.slot ) delta[2] = next.slot;
+			}
+			return next;
+		});
+		account(b, delta[0], delta[1]);
+		if( delta[2] != 0 ) schedule(b, k, delta[2]);
+		release(replaced[0], result);
+		long ticket = 0;
+		if( delta[3] != 0 )
+		{
+			touch(b.partition);
+			if( result != null ) b.partition.puts.increment();
+			if( GLOBAL.equals(partition) && Replication.enabled() && !replaying.get() )
+			{
+				if( result == null ) ticket = Replication.remove(owner, k, System.currentTimeMillis());
+				else ticket = Replication.set(owner, k, encode(result.value), result.until == Long.MAX_VALUE ? 0 : result.until, result.stamp);
+			}
+			if( result != null ) result = settle(b, k, result);
+		}
+		
+		if( result != null )
+		{
+			sketch.increment(b.hash(k));
+			if( b.retired ) relocate(b, owner, partition, k);
+			enforce(b, result);
+		}
+		Replication.await(ticket);
+		return result;
+	}
+	
+	/**
+	 * Weighs the value of a new entry and moves it off-heap if it has to, outside of the compute of its key
+	 * which holds the lock of a whole bin of the map. The entry is then replaced by its settled copy, unless
+	 * it was replaced meanwhile. Until then it only weighs its key.
+	 */
+	private static Entry settle(Bucket b, String key, Entry entry)
+	{
+		if( entry.settled ) return entry;
+		long size = Weigher.weigh(entry.value);
+		Object stored = OffHeap.store(entry.value, size);
+		// off-heap values only weigh their handle on the heap
+		Entry s = new Entry(entry, stored, entry.weight + (stored == entry.value ? size : Weigher.weigh(stored)));
+		boolean[] replaced = { false };
+		b.entries.computeIfPresent(key, (x, e) ->
+		{
+			if( e != entry ) return e;
+			// the sweeper may have moved the entry to another slot meanwhile
+			s.slot = e.slot;
+			replaced[0] = true;
+			return s;
+		});
+		if( !replaced[0] )
+		{
+			release(s, null);
+			return entry;
+		}
+		account(b, 0, s.weight - entry.weight);
+		return s;
+	}
+	
+	// gives back the off-heap capacity of the value of an entry the state no longer holds
+	private static void release(Entry dropped, Entry kept)
+	{
+		if( dropped != null && dropped.value instanceof OffHeap && (kept == null || kept.value != dropped.value) )
+			((OffHeap) dropped.value).release();
+	}
+	
+	// moves an entry written in a bucket being dropped to the current bucket of its user
+	private static void relocate(Bucket b, String owner, String partition, String key)
+	{
+		while( b.retired )
+		{
+			Entry moved = b.entries.get(key);
+			if( moved == null || !detach(b, key, moved) ) return;
+			b = bucket(partition, owner, true);
+			long[] delta = new long[2];
+			Entry[] dropped = { null };
+			b.entries.compute(key, (x, e) ->
+			{
+				// a live entry written meanwhile in the current bucket wins over the moved one
+				if( e != null && e.until >= System.currentTimeMillis() )
+				{
+					dropped[0] = moved;
+					return e;
+				}
+				dropped[0] = e;
+				delta[0] = 1 - (e == null ? 0 : 1);
+				delta[1] = moved.weight - (e == null ? 0 : e.weight);
+				return moved;
+			});
+			account(b, delta[0], delta[1]);
+			release(dropped[0], null);
+			if( dropped[0] == moved ) return;
+			touch(b.partition);
+			if( moved.until != Long.MAX_VALUE ) schedule(b, key, moved.slot);
+		}
+	}
+	
+	private static boolean remove(Bucket b, String key, Entry entry)
+	{
+		if( !detach(b, key, entry) ) return false;
+		release(entry, null);
+		return true;
+	}
+	
+	// removes an entry without releasing its value, which may be moved elsewhere
+	private static boolean detach(Bucket b, String key, Entry entry)
+	{
+		boolean[] removed = { false };
+		b.entries.computeIfPresent(key, (x, e) ->
+		{
+			if( e != entry ) return e;
+			removed[0] = true;
+			return null;
+		});
+		if( removed[0] )
+		{
+			account(b, -1, -entry.weight);
+			touch(b.partition);
+			if( b.entries.isEmpty() ) retire(b.partition, b);
+		}
+		return removed[0];
+	}
+	
+	private static boolean over(Bucket b)
+	{
+		if( NOBODY.equals(b.user) ) return false;
+		long e = userEntries, w = userBytes;
+		return (e > 0 && b.count.get() > e) || (w > 0 && b.bytes.get() > w);
+	}
+	
+	private static boolean over(Partition p)
+	{
+		if( GLOBAL.equals(p.id) ) return false;
+		long e = endpointEntries, w = endpointBytes;
+		return (e > 0 && p.count.get() > e) || (w > 0 && p.bytes.get() > w);
+	}
+	
+	private static boolean over()
+	{
+		long e = maxEntries, w = maxBytes;
+		return (e > 0 && count.get() > e) || (w > 0 && bytes.get() > w);
+	}
+	
+	/**
+	 * Brings the bucket, its partition and the whole state back within their bounds after a write.
+	 * A single thread evicts at a time and the others do not wait for it: they leave their bucket to
+	 * the thread that holds the lock, which evicts for every bucket left until none is. The buckets left
+	 * after its last pass are seen once it releases the lock, by itself or by a later writer.
+	 */
+	private static void enforce(Bucket b, Entry written)
+	{
+		if( !over(b) && !over(b.partition) && !over() ) return;
+		overdue.put(b, written);
+		while( !overdue.isEmpty() && evictor.tryLock() )
+		{
+			try
+			{
+				for( Map.Entry<Bucket, Entry> o : overdue.entrySet() )
+				{
+					if( !overdue.remove(o.getKey(), o.getValue()) ) continue;
+					// a bucket still over its bounds after a round waits for the next pass
+					if( evict(o.getKey(), o.getValue()) ) overdue.putIfAbsent(o.getKey(), o.getValue());
+				}
+			}
+			finally
+			{
+				evictor.unlock();
+			}
+		}
+	}
+	
+	// evicts entries until the bucket, its partition and the whole state are within their bounds, but not the one just written.
+	// returns true if they are still over their bounds after a round, false when they are within or nothing is left to evict
+	private static boolean evict(Bucket b, Entry written)
+	{
+		for( int i = 0; i < 1_000; i++ )
+		{
+			Candidate c;
+			if( over(b) ) c = sample(b, null, SAMPLES, written);
+			else if( over(b.partition) ) c = sample(b.partition, null, SAMPLES, written);
+			else if( over() ) c = sample(written);
+			else return false;
+			
+			if( c == null ) return false;
+			if( remove(c.bucket, c.key, c.entry) )
+				(c.frequency < 0 ? c.bucket.partition.expiries : c.bucket.partition.evictions).increment();
+		}
+		return true;
+	}
+	
+	// keeps the least frequently used entry among the next entries of the bucket, an expired entry wins
+	private static Candidate sample(Bucket b, Candidate best, int n, Entry skip)
+	{
+		long now = System.currentTimeMillis();
+		for( int i = 0; i < n; i++ )
+		{
+			if( b.cursor == null || !b.cursor.hasNext() )
+			{
+				b.cursor = b.entries.entrySet().iterator();
+				if( !b.cursor.hasNext() ) break;
+			}
+			Map.Entry<String, Entry> e = b.cursor.next();
+			if( e.getValue() == skip ) continue;
+			int frequency = e.getValue().until < now ? -1 : sketch.frequency(b.hash(e.getKey()));
+			if( best == null || frequency < best.frequency )
+				best = new Candidate(b, e.getKey(), e.getValue(), frequency);
+			if( frequency < 0 ) break;
+		}
+		return best;
+	}
+	
+	// spreads the sample over the next buckets of the partition
+	private static Candidate sample(Partition p, Candidate best, int n, Entry skip)
+	{
+		for( int visited = 0; n > 0 && visited < SAMPLES; visited++ )
+		{
+			if( p.cursor == null || !p.cursor.hasNext() )
+			{
+				p.cursor = p.buckets.values().iterator();
+				if( !p.cursor.hasNext() ) break;
+			}
+			Bucket b = p.cursor.next();
+			int taken = (int) Math.max(1, Math.min(n, b.count.get()));
+			best = sample(b, best, taken, skip);
+			n -= taken;
+			if( best != null && best.frequency < 0 ) break;
+		}
+		return best;
+	}
+	
+	// spreads the sample over the next partitions
+	private static Candidate sample(Entry skip)
+	{
+		Candidate best = null;
+		int n = SAMPLES;
+		for( int visited = 0; n > 0 && visited < SAMPLES; visited++ )
+		{
+			if( cursor == null || !cursor.hasNext() )
+			{
+				cursor = partitions.values().iterator();
+				if( !cursor.hasNext() ) break;
+			}
+			Partition p = cursor.next();
+			int taken = (int) Math.max(1, Math.min(n, p.count.get()));
+			best = sample(p, best, taken, skip);
+			n -= taken;
+			if( best != null && best.frequency < 0 ) break;
+		}
+		return best;
+	}
+	
 	@SuppressWarnings("unchecked")
-	private static <T> T get(String key)
+	private static <T> T get(String partition, User.Type user, String key)
 	{
-		Tuple<Object, Long> value = store.get(key);
-		if( value == null || value.b < System.currentTimeMillis() ) return null;
-		else return (T) value.a;
+		Partition p = partitions.get(partition);
+		// reads never create a partition, that of a dropped endpoint would come back
+		if( p == null )
+		{
+			vacant.increment();
+			return null;
+		}
+		Bucket b = p.buckets.get(owner(user));
+		if( key == null ) key = "";
+		Entry value = b == null ? null : b.entries.get(key);
+		if( value == null || value.until < System.currentTimeMillis() )
+		{
+			p.misses.increment();
+			return null;
+		}
+		p.hits.increment();
+		sketch.increment(b.hash(key));
+		return (T) unwrap(value.value);
 	}
 	
 	/**
@@ -82,9 +807,7 @@ public class State
 	 */
 	public static <T> T local(String key, User.Type user)
 	{
-		if( key == null ) key = "";
-		if( user != null ) key = user.id() + ":" + key;
-		return get(api.get() + ":" + key);
+		return get(endpoint(), user, key);
 	}
 	
 	/**
@@ -104,18 +827,20 @@ public class State
 	 */
 	public static <T> T global(String key, User.Type user)
 	{
-		if( key == null ) key = "";
-		if( user != null ) key = user.id() + ":" + key;
-		return get(key);
+		return get(GLOBAL, user, key);
 	}
 	
 	@SuppressWarnings("unchecked")
-	private static <T> T set(String key, Object value, long ttl)
+	private static <T> T set(String partition, User.Type user, String key, Object value, long ttl)
 	{
 		long until = ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE;
-		Tuple<Object, Long> previous = store.put(key, Tuple.of(value, until));
-		if( previous == null || previous.b < System.currentTimeMillis() ) return null;
-		else return (T) previous.a;
+		Object[] previous = { null };
+		update(partition, user, key, e ->
+		{
+			if( e != null ) previous[0] = e.value;
+			return new Entry(key, value, until);
+		});
+		return (T) unwrap(previous[0]);
 	}
 	
 	/**
@@ -158,9 +883,7 @@ public class State
 	 */
 	public static <T> T local(String key, User.Type user, Object value, long ttl)
 	{
-		if( key == null ) key = "";
-		if( user != null ) key = user.id() + ":" + key;
-		return set(api.get() + ":" + key, value, ttl);
+		return set(endpoint(), user, key, value, ttl);
 	}
 	
 	/**
@@ -203,8 +926,812 @@ public class State
 	 */
 	public static <T> T global(String key, User.Type user, Object value, long ttl)
 	{
-		if( key == null ) key = "";
-		if( user != null ) key = user.id() + ":" + key;
-		return set(key, value, ttl);
+		return set(GLOBAL, user, key, value, ttl);
+	}
+	
+	// carries the checked error of a user function out of the map update
+	private static final class Failure extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+		private final Exception error;
+		private Failure(Exception error)
+		{
+			super(error);
+			this.error = error;
+		}
+	}
+	
+	// a hot counter, read back as a Long
+	private static class Counter extends LongAdder
+	{
+		private static final long serialVersionUID = 1L;
+	}
+	
+	// whether a value can be held by a counter as is
+	private static boolean whole(Object value)
+	{
+		return value instanceof Counter || value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+	}
+	
+	private static Object unwrap(Object value)
+	{
+		if( value instanceof Counter ) return ((Counter) value).sum();
+		if( value instanceof OffHeap ) return ((OffHeap) value).get();
+		return value;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> T compute(String partition, User.Type user, String key, Function<T, T> remapping, long ttl) throws Exception
+	{
+		Object[] computed = { null };
+		try
+		{
+			update(partition, user, key, e ->
+			{
+				T value = remapping.apply(e == null ? null : (T) unwrap(e.value));
+				computed[0] = value;
+				if( value == null ) return null;
+				return new Entry(key, value, ttl > 0 ? System.currentTimeMillis() + ttl : (e != null ? e.until : Long.MAX_VALUE));
+			});
+		}
+		catch(Failure f)
+		{
+			throw f.error;
+		}
+		// the stored value may be off-heap, return the one computed
+		return (T) computed[0];
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> T computeIfAbsent(String partition, User.Type user, String key, Supplier<T> supplier, long ttl) throws Exception
+	{
+		Entry result;
+		try
+		{
+			result = update(partition, user, key, e ->
+			{
+				if( e != null ) return e;
+				T value = supplier.get();
+				if( value == null ) return null;
+				return new Entry(key, value, ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE);
+			});
+		}
+		catch(Failure f)
+		{
+			throw f.error;
+		}
+		return result == null ? null : (T) unwrap(result.value);
+	}
+	
+	private static boolean compareAndSet(String partition, User.Type user, String key, Object expected, Object value, long ttl)
+	{
+		boolean[] swapped = { false };
+		update(partition, user, key, e ->
+		{
+			// an off-heap value is only ever read as a copy, compare it by content
+			Object current = e == null ? null : e.value;
+			if( current instanceof OffHeap ? !((OffHeap) current).matches(expected) : !Objects.equals(unwrap(current), expected) ) return e;
+			swapped[0] = true;
+			if( value == null ) return null;
+			return new Entry(key, value, ttl > 0 ? System.currentTimeMillis() + ttl : (e != null ? e.until : Long.MAX_VALUE));
+		});
+		return swapped[0];
+	}
+	
+	private static void increment(String partition, User.Type user, String key, long delta, long ttl)
+	{
+		increment(partition, owner(user), key, delta, ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE);
 	}
+	
+	private static void increment(String partition, String owner, String key, long delta, long until)
+	{
+		String k = key == null ? "" : key;
+		// the delta is sent once it applies, the update below must not send the whole value too
+		boolean replicate = GLOBAL.equals(partition) && Replication.enabled() && !replaying.get();
+		
+		// fast path: the counter exists, only the striped cells are touched. A counter keeps its instance
+		// when its value is replaced by a number, so the add is never lost to a concurrent update; when
+		// the entry is removed or expires meanwhile, the add counts as made just before.
+		Bucket b = bucket(partition, owner, false);
+		Entry e = b == null ? null : b.entries.get(k);
+		if( e != null && e.value instanceof Counter && e.until >= System.currentTimeMillis() )
+		{
+			((Counter) e.value).add(delta);
+			sketch.increment(b.hash(k));
+			touch(b.partition);
+			b.partition.puts.increment();
+		}
+		else
+		{
+			boolean replayed = replaying.get();
+			replaying.set(true);
+			try
+			{
+				update(partition, owner, k, previous ->
+				{
+					if( previous != null && previous.value != null && !(previous.value instanceof Number) )
+						throw new ClassCastException("The state entry " + k + " is not a number");
+					
+					// a live counter is seen as its value, the update adds the difference to it
+					Counter counter = new Counter();
+					if( previous != null && previous.value != null ) counter.add(((Number) previous.value).longValue());
+					counter.add(delta);
+					return new Entry(k, counter, previous != null ? previous.until : until);
+				});
+			}
+			finally
+			{
+				replaying.set(replayed);
+			}
+		}
+		
+		if( replicate )
+			Replication.await(Replication.add(owner, k, delta, until == Long.MAX_VALUE ? 0 : until));
+	}
+	
+	/**
+	 * Atomically updates a value of the calling endpoint's local state. The entry keeps its expiration.
+	 * <pre>State.localCompute("list", (Data list) -&gt; list == null ? Data.list().add(item) : list.add(item));</pre>
+	 * The function runs once while other updates of the entry wait, so keep it short and do not update the state from it.
+	 * @param <T> the value type
+	 * @param key the state entry name
+	 * @param remapping receives the current value, or {@code null} if it is absent or has expired, and returns the new value, or {@code null} to remove the entry
+	 * @return the new value
+	 * @throws Exception if the function fails, the entry is then left unchanged
+	 */
+	public static <T> T localCompute(String key, Function<T, T> remapping) throws Exception { return localCompute(key, null, remapping, -1); }
+	
+	/**
+	 * Atomically updates a user-bound value of the calling endpoint's local state.
+	 * The function runs once while other updates of the entry wait, so keep it short and do not update the state from it.
+	 * @param <T> the value type
+	 * @param key the state entry name
+	 * @param user the user the value is bound to, or {@code null} for the entry bound to no user
+	 * @param remapping receives the current value, or {@code null} if it is absent or has expired, and returns the new value, or {@code null} to remove the entry
+	 * @param ttl the time-to-live in milliseconds of the new value, or a non-positive value to keep the current expiration
+	 * @return the new value
+	 * @throws Exception if the function fails, the entry is then left unchanged
+	 */
+	public static <T> T localCompute(String key, User.Type user, Function<T, T> remapping, long ttl) throws Exception { return compute(endpoint(), user, key, remapping, ttl); }
+	
+	/**
+	 * Atomically updates a value of the global state shared by all endpoints. The entry keeps its expiration.
+	 * The function runs once while other updates of the entry wait, so keep it short and do not update the state from it.
+	 * @param <T> the value type
+	 * @param key the state entry name
+	 * @param remapping receives the current value, or {@code null} if it is absent or has expired, and returns the new value, or {@code null} to remove the entry
+	 * @return the new value
+	 * @throws Exception if the function fails, the entry is then left unchanged
+	 */
+	public static <T> T globalCompute(String key, Function<T, T> remapping) throws Exception { return globalCompute(key, null, remapping, -1); }
+	
+	/**
+	 * Atomically updates a user-bound value of the global state shared by all endpoints.
+	 * The function runs once while other updates of the entry wait, so keep it short and do not update the state from it.
+	 * @param <T> the value type
+	 * @param key the state entry name
+	 * @param user the user the value is bound to, or {@code null} for the entry bound to no user
+	 * @param remapping receives the current value, or {@code null} if it is absent or has expired, and returns the new value, or {@code null} to remove the entry
+	 * @param ttl the time-to-live in milliseconds of the new value, or a non-positive value to keep the current expiration
+	 * @return the new value
+	 * @throws Exception if the function fails, the entry is then left unchanged
+	 */
+	public static <T> T globalCompute(String key, User.Type user, Function<T, T> remapping, long ttl) throws Exception { return compute(GLOBAL, user, key, remapping, ttl); }
+	
+	/**
+	 * Returns a value of the calling endpoint's local state, storing the supplied one first if it is absent or has expired.
+	 * The supplier runs at most once per call, while other updates of the same entry wait.
+	 * @param <T> the value type
+	 * @param key the state entry name
+	 * @param supplier supplies the value to store, or {@code null} to store nothing
+	 * @return the current or stored value
+	 * @throws Exception if the supplier fails, the entry is then left unchanged
+	 */
+	public static <T> T localComputeIfAbsent(String key, Supplier<T> supplier) throws Exception { return localComputeIfAbsent(key, null, supplier, -1); }
+	
+	/**
+	 * Returns a user-bound value of the calling endpoint's local state, storing the supplied one first if it is absent or has expired.
+	 * The supplier runs at most once per call, while other updates of the same entry wait.
+	 * @param <T> the value type
+	 * @param key the state entry name
+	 * @param user the user the value is bound to, or {@code null} for the entry bound to no user
+	 * @param supplier supplies the value to store, or {@code null} to store nothing
+	 * @param ttl the time-to-live in milliseconds of the stored value, or a non-positive value to never expire
+	 * @return the current or stored value
+	 * @throws Exception if the supplier fails, the entry is then left unchanged
+	 */
+	public static <T> T localComputeIfAbsent(String key, User.Type user, Supplier<T> supplier, long ttl) throws Exception { return computeIfAbsent(endpoint(), user, key, supplier, ttl); }
+	
+	/**
+	 * Returns a value of the global state shared by all endpoints, storing the supplied one first if it is absent or has expired.
+	 * The supplier runs at most once per call, while other updates of the same entry wait.
+	 * @param <T> the value type
+	 * @param key the state entry name
+	 * @param supplier supplies the value to store, or {@code null} to store nothing
+	 * @return the current or stored value
+	 * @throws Exception if the supplier fails, the entry is then left unchanged
+	 */
+	public static <T> T globalComputeIfAbsent(String key, Supplier<T> supplier) throws Exception { return globalComputeIfAbsent(key, null, supplier, -1); }
+	
+	/**
+	 * Returns a user-bound value of the global state shared by all endpoints, storing the supplied one first if it is absent or has expired.
+	 * The supplier runs at most once per call, while other updates of the same entry wait.
+	 * @param <T> the value type
+	 * @param key the state entry name
+	 * @param user the user the value is bound to, or {@code null} for the entry bound to no user
+	 * @param supplier supplies the value to store, or {@code null} to store nothing
+	 * @param ttl the time-to-live in milliseconds of the stored value, or a non-positive value to never expire
+	 * @return the current or stored value
+	 * @throws Exception if the supplier fails, the entry is then left unchanged
+	 */
+	public static <T> T globalComputeIfAbsent(String key, User.Type user, Supplier<T> supplier, long ttl) throws Exception { return computeIfAbsent(GLOBAL, user, key, supplier, ttl); }
+	
+	/**
+	 * Replaces a value of the calling endpoint's local state only if it currently equals the expected one.
+	 * The entry keeps its expiration.
+	 * @param key the state entry name
+	 * @param expected the expected value, or {@code null} if the entry is expected to be absent or expired
+	 * @param value the new value, or {@code null} to remove the entry
+	 * @return true if the value was replaced
+	 */
+	public static boolean localCompareAndSet(String key, Object expected, Object value) { return localCompareAndSet(key, null, expected, value, -1); }
+	
+	/**
+	 * Replaces a user-bound value of the calling endpoint's local state only if it currently equals the expected one.
+	 * @param key the state entry name
+	 * @param user the user the value is bound to, or {@code null} for the entry bound to no user
+	 * @param expected the expected value, or {@code null} if the entry is expected to be absent or expired
+	 * @param value the new value, or {@code null} to remove the entry
+	 * @param ttl the time-to-live in milliseconds of the new value, or a non-positive value to keep the current expiration
+	 * @return true if the value was replaced
+	 */
+	public static boolean localCompareAndSet(String key, User.Type user, Object expected, Object value, long ttl) { return compareAndSet(endpoint(), user, key, expected, value, ttl); }
+	
+	/**
+	 * Replaces a value of the global state shared by all endpoints only if it currently equals the expected one.
+	 * The entry keeps its expiration.
+	 * @param key the state entry name
+	 * @param expected the expected value, or {@code null} if the entry is expected to be absent or expired
+	 * @param value the new value, or {@code null} to remove the entry
+	 * @return true if the value was replaced
+	 */
+	public static boolean globalCompareAndSet(String key, Object expected, Object value) { return globalCompareAndSet(key, null, expected, value, -1); }
+	
+	/**
+	 * Replaces a user-bound value of the global state shared by all endpoints only if it currently equals the expected one.
+	 * @param key the state entry name
+	 * @param user the user the value is bound to, or {@code null} for the entry bound to no user
+	 * @param expected the expected value, or {@code null} if the entry is expected to be absent or expired
+	 * @param value the new value, or {@code null} to remove the entry
+	 * @param ttl the time-to-live in milliseconds of the new value, or a non-positive value to keep the current expiration
+	 * @return true if the value was replaced
+	 */
+	public static boolean globalCompareAndSet(String key, User.Type user, Object expected, Object value, long ttl) { return compareAndSet(GLOBAL, user, key, expected, value, ttl); }
+	
+	/**
+	 * Adds to a counter of the calling endpoint's local state. Counters are striped so concurrent
+	 * increments do not contend, and are read back as a {@link Long}.
+	 * @param key the state entry name
+	 * @param delta the value to add
+	 */
+	public static void localIncrement(String key, long delta) { localIncrement(key, null, delta, -1); }
+	
+	/**
+	 * Adds to a user-bound counter of the calling endpoint's local state. Counters are striped so
+	 * concurrent increments do not contend, and are read back as a {@link Long}.
+	 * @param key the state entry name
+	 * @param user the user the counter is bound to, or {@code null} for the entry bound to no user
+	 * @param delta the value to add
+	 * @param ttl the time-to-live in milliseconds of a new counter, or a non-positive value to never expire.
+	 * 		Later increments do not extend it, so this counts over a fixed window.
+	 */
+	public static void localIncrement(String key, User.Type user, long delta, long ttl) { increment(endpoint(), user, key, delta, ttl); }
+	
+	/**
+	 * Adds to a counter of the global state shared by all endpoints. Counters are striped so
+	 * concurrent increments do not contend, and are read back as a {@link Long}.
+	 * @param key the state entry name
+	 * @param delta the value to add
+	 */
+	public static void globalIncrement(String key, long delta) { globalIncrement(key, null, delta, -1); }
+	
+	/**
+	 * Adds to a user-bound counter of the global state shared by all endpoints. Counters are striped
+	 * so concurrent increments do not contend, and are read back as a {@link Long}.
+	 * @param key the state entry name
+	 * @param user the user the counter is bound to, or {@code null} for the entry bound to no user
+	 * @param delta the value to add
+	 * @param ttl the time-to-live in milliseconds of a new counter, or a non-positive value to never expire.
+	 * 		Later increments do not extend it, so this counts over a fixed window.
+	 */
+	public static void globalIncrement(String key, User.Type user, long delta, long ttl) { increment(GLOBAL, user, key, delta, ttl); }
+	
+	private static String file(Partition p)
+	{
+		// the partition is the source path of the endpoint
+		return GLOBAL.equals(p.id) ? "global.json" : "endpoint-" + URLEncoder.encode(p.id, StandardCharsets.UTF_8) + ".json";
+	}
+	
+	private static String partition(String file)
+	{
+		if( file.equals("global.json") ) return GLOBAL;
+		if( file.startsWith("endpoint-") && file.endsWith(".json") ) return URLDecoder.decode(file.substring(9, file.length() - 5), StandardCharsets.UTF_8);
+		return null;
+	}
+	
+	// drops the partitions of the endpoints that do not exist, their snapshot is removed with them
+	private static void prune()
+	{
+		Set<String> sources = new HashSet<>();
+		for( Endpoint.Type e : Registry.of(Endpoint.class) )
+			sources.add(e.valueOf("path").asString());
+		for( String id : partitions.keySet() )
+			if( !GLOBAL.equals(id) && !sources.contains(id) )
+				drop(id);
+	}
+	
+	private static Data encode(Object value)
+	{
+		if( value instanceof Counter ) return Data.map().put("t", "c").put("v", String.valueOf(((Counter) value).sum()));
+		if( value instanceof OffHeap ) value = ((OffHeap) value).get();
+		return StateCodec.encode(value);
+	}
+	
+	private static Object decode(Data data)
+	{
+		if( !"c".equals(data.asString("t")) ) return StateCodec.decode(data);
+		Counter counter = new Counter();
+		counter.add(Long.parseLong(data.asString("v")));
+		return counter;
+	}
+	
+	/**
+	 * Loads the state snapshot once, when the instance starts.
+	 * When the snapshot storage is not registered yet right after startup, the snapshot tracker tries again.
+	 * @hidden
+	 */
+	public static void restore()
+	{
+		if( restored ) return;
+		synchronized(saved)
+		{
+			if( restored ) return;
+			String name = Manager.of(Config.class).get(Api.class, "state.snapshot.storage").asString();
+			if( name == null || name.isBlank() )
+			{
+				restored = true;
+				return;
+			}
+			
+			Storage.Type storage = Api.storage(name);
+			if( storage == null )
+			{
+				if( System.currentTimeMillis() - booted < 60_000 ) return;
+				Manager.of(Logger.class).warning(State.class, "State snapshot storage not found: {}", name);
+				restored = true;
+				return;
+			}
+			
+			replaying.set(true);
+			try { load(storage); }
+			catch(Exception e) { Manager.of(Logger.class).warning(State.class, e); }
+			finally
+			{
+				replaying.set(false);
+				restored = true;
+			}
+		}
+	}
+	
+	private static void load(Storage.Type storage)
+	{
+		long now = System.currentTimeMillis();
+		long loaded = 0;
+		Collection<String> files = storage.list(SNAPSHOTS);
+		if( files == null ) return;
+		for( String path : files )
+		{
+			String file = path.substring(path.lastIndexOf('/') + 1);
+			String partition = partition(file);
+			if( partition == null ) continue;
+			
+			byte[] content = storage.get(SNAPSHOTS + file);
+			if( content == null ) continue;
+			Data users;
+			try { users = Json.decode(new String(content, StandardCharsets.UTF_8)); }
+			catch(Exception e)
+			{
+				Manager.of(Logger.class).warning(State.class, "Invalid state snapshot {}", file);
+				continue;
+			}
+			saved.add(file);
+			
+			for( Map.Entry<String, Data> u : users.entrySet() )
+			{
+				for( Map.Entry<String, Data> e : u.getValue().entrySet() )
+				{
+					long until = e.getValue().asLong("u");
+					if( until <= 0 ) until = Long.MAX_VALUE;
+					if( until < now ) continue;
+					Object value = decode(e.getValue());
+					if( value == null ) continue;
+					
+					final long deadline = until;
+					// values written meanwhile win over the snapshot
+					update(partition, u.getKey(), e.getKey(), x -> x != null ? x : new Entry(e.getKey(), value, deadline));
+					loaded++;
+				}
+			}
+		}
+		Manager.of(Logger.class).info(State.class, "Restored {} state entries", loaded);
+	}
+	
+	// writes the partitions that changed since the last snapshot, and removes those that were dropped
+	private static void snapshot(Storage.Type storage)
+	{
+		long now = System.currentTimeMillis();
+		long max = Manager.of(Config.class).get(Api.class, "state.snapshot.max.bytes").asLong();
+		for( Partition p : partitions.values() )
+		{
+			if( !p.dirty ) continue;
+			// changes made while writing mark the partition again
+			p.dirty = false;
+			
+			String file = file(p);
+			// the estimate avoids encoding a partition that is far too large
+			if( max > 0 && p.bytes.get() > 2 * max )
+			{
+				oversized(storage, p, file, p.bytes.get(), max);
+				continue;
+			}
+			
+			Data users = Data.map();
+			long written = 0;
+			for( Bucket b : p.buckets.values() )
+			{
+				Data entries = Data.map();
+				for( Map.Entry<String, Entry> e : b.entries.entrySet() )
+				{
+					Entry x = e.getValue();
+					if( x.until < now ) continue;
+					Data value = encode(x.value);
+					if( value == null ) continue;
+					entries.put(e.getKey(), value.put("u", x.until == Long.MAX_VALUE ? 0 : x.until));
+					written++;
+				}
+				if( !entries.isEmpty() ) users.put(b.user, entries);
+			}
+			
+			byte[] content = written > 0 ? users.toString().getBytes(StandardCharsets.UTF_8) : null;
+			if( max > 0 && content != null && content.length > max )
+			{
+				oversized(storage, p, file, content.length, max);
+				continue;
+			}
+			
+			try
+			{
+				if( written > 0 )
+				{
+					storage.put(SNAPSHOTS + file, content);
+					saved.add(file);
+				}
+				else if( saved.remove(file) )
+					storage.remove(SNAPSHOTS + file);
+			}
+			catch(Exception e)
+			{
+				p.dirty = true;
+				Manager.of(Logger.class).warning(State.class, e);
+			}
+		}
+		
+		for( String file : saved )
+		{
+			if( partitions.containsKey(partition(file)) ) continue;
+			try
+			{
+				storage.remove(SNAPSHOTS + file);
+				saved.remove(file);
+			}
+			catch(Exception e)
+			{
+				Manager.of(Logger.class).warning(State.class, e);
+			}
+		}
+	}
+	
+	// skips the snapshot of a partition above the size bound, its previous snapshot would be restored stale
+	private static void oversized(Storage.Type storage, Partition p, String file, long size, long max)
+	{
+		Manager.of(Logger.class).warning(State.class, "State partition {} is not saved, its snapshot of {} bytes exceeds {} bytes", p.name, size, max);
+		try
+		{
+			if( saved.remove(file) ) storage.remove(SNAPSHOTS + file);
+		}
+		catch(Exception e)
+		{
+			saved.add(file);
+			Manager.of(Logger.class).warning(State.class, e);
+		}
+	}
+	
+	// publishes the counters of a partition accumulated since the last call
+	private static void publish(Partition p)
+	{
+		long[] current = { p.hits.sum(), p.misses.sum(), p.puts.sum(), p.expiries.sum(), p.evictions.sum() };
+		String[] names = { "hit", "miss", "put", "expiry", "eviction" };
+		for( int i = 0; i < current.length; i++ )
+		{
+			long delta = current[i] - p.published[i];
+			p.published[i] = current[i];
+			if( delta != 0 ) Metrics.add(Globals.MONITOR_TYPE_STATE, p.name, names[i], delta);
+		}
+		Metrics.add(Globals.MONITOR_TYPE_STATE, p.name, "entries", p.count.get());
+		Metrics.add(Globals.MONITOR_TYPE_STATE, p.name, "bytes", p.bytes.get());
+	}
+	
+	private static Data stats(Partition p)
+	{
+		return Data.map()
+			.put("partition", p.name)
+			.put("entries", p.count.get())
+			.put("bytes", p.bytes.get())
+			.put("hits", p.hits.sum())
+			.put("misses", p.misses.sum())
+			.put("puts", p.puts.sum())
+			.put("expiries", p.expiries.sum())
+			.put("evictions", p.evictions.sum());
+	}
+	
+	/**
+	 * Returns the usage of the whole state and of the global partition
+	 * @return the state statistics
+	 * @hidden
+	 */
+	public static Data stats()
+	{
+		Partition global = partitions.get(GLOBAL);
+		return Data.map()
+			.put("entries", count.get())
+			.put("bytes", bytes.get())
+			.put("offheap", OffHeap.used())
+			.put("partitions", partitions.size())
+			.put("vacant", vacant.sum())
+			.put("global", global == null ? stats(new Partition(GLOBAL)) : stats(global));
+	}
+	
+	/**
+	 * Returns the usage of the local state of an endpoint
+	 * @param partition the endpoint id
+	 * @return the partition statistics, or null if the endpoint has no state
+	 * @hidden
+	 */
+	public static Data stats(String partition)
+	{
+		Partition p = partition == null ? null : partitions.get(partition);
+		return p == null ? null : stats(p);
+	}
+	
+	private static Set<String> keys(Bucket b)
+	{
+		Set<String> keys = new HashSet<>();
+		if( b == null ) return keys;
+		long now = System.currentTimeMillis();
+		for( Map.Entry<String, Entry> e : b.entries.entrySet() )
+			if( e.getValue().until >= now )
+				keys.add(e.getKey());
+		return keys;
+	}
+	
+	private static void clear(Bucket b)
+	{
+		if( b == null ) return;
+		boolean replicated = GLOBAL.equals(b.partition.id) && Replication.enabled();
+		long ticket = 0;
+		for( Map.Entry<String, Entry> e : b.entries.entrySet() )
+			if( remove(b, e.getKey(), e.getValue()) && replicated )
+				ticket = Replication.remove(b.user, e.getKey(), System.currentTimeMillis());
+		// the last removal is sent along with the others
+		Replication.await(ticket);
+	}
+	
+	/**
+	 * Lists the live entries of the global state as replication changes, to resynchronize a peer
+	 * @return the changes
+	 * @hidden
+	 */
+	public static Data replica()
+	{
+		Data changes = Data.list();
+		Partition p = partitions.get(GLOBAL);
+		if( p == null ) return changes;
+		long now = System.currentTimeMillis();
+		for( Bucket b : p.buckets.values() )
+		{
+			for( Map.Entry<String, Entry> e : b.entries.entrySet() )
+			{
+				Entry x = e.getValue();
+				if( x.until < now ) continue;
+				Data value = encode(x.value);
+				if( value == null ) continue;
+				changes.add(Data.map()
+					.put("op", "set")
+					.put("u", b.user)
+					.put("k", e.getKey())
+					.put("v", value)
+					.put("e", x.until == Long.MAX_VALUE ? 0 : x.until)
+					.put("s", x.stamp)
+					.put("o", x.origin));
+			}
+		}
+		return changes;
+	}
+	
+	/**
+	 * Applies a change of the global state received from a peer instance
+	 * @param change the change
+	 * @param sender the instance that sent the change, and made it unless the change names its origin
+	 * @return true if the change was applied, false if it is not recognized
+	 * @hidden
+	 */
+	public static boolean replicated(Data change, String sender)
+	{
+		String owner = change.asString("u");
+		String key = change.asString("k");
+		// a resynchronization forwards the changes made by other instances
+		String node = change.isEmpty("o") ? sender : change.asString("o");
+		if( owner == null || key == null || node == null ) return false;
+		long until = change.asLong("e");
+		final long deadline = until > 0 ? until : Long.MAX_VALUE;
+		final long stamp = change.asLong("s");
+		
+		replaying.set(true);
+		try
+		{
+			switch( String.valueOf(change.asString("op")) )
+			{
+				case "set":
+					Object value = decode(change.get("v"));
+					if( value == null ) return false;
+					update(GLOBAL, owner, key, e -> e != null && e.wins(stamp, node) ? e : new Entry(key, value, deadline, stamp, node));
+					return true;
+				case "del":
+					update(GLOBAL, owner, key, e -> e != null && e.wins(stamp, node) ? e : null);
+					return true;
+				case "add":
+					increment(GLOBAL, owner, key, change.asLong("v"), deadline);
+					return true;
+				default:
+					return false;
+			}
+		}
+		finally
+		{
+			replaying.set(false);
+		}
+	}
+	
+	/**
+	 * Drops the whole partition of an endpoint
+	 * @param partition the source path of the endpoint
+	 */
+	static void drop(String partition)
+	{
+		if( partition == null || GLOBAL.equals(partition) ) return;
+		Partition p = partitions.remove(partition);
+		if( p == null ) return;
+		for( Bucket b : p.buckets.values() )
+		{
+			// concurrent writers move their entry to a fresh partition
+			b.retired = true;
+			clear(b);
+		}
+	}
+	
+	/**
+	 * Lists the names of the entries of the calling endpoint's local state that are bound to no user.
+	 * @return the entry names, a snapshot that does not follow later changes
+	 */
+	public static Set<String> localKeys() { return localKeys(null); }
+	
+	/**
+	 * Lists the names of the entries of the calling endpoint's local state that are bound to the specified user.
+	 * @param user the user, or {@code null} for the entries bound to no user
+	 * @return the entry names, a snapshot that does not follow later changes
+	 */
+	public static Set<String> localKeys(User.Type user) { return keys(bucket(endpoint(), user, false)); }
+	
+	/**
+	 * Lists the names of the entries of the global state that are bound to no user.
+	 * @return the entry names, a snapshot that does not follow later changes
+	 */
+	public static Set<String> globalKeys() { return globalKeys(null); }
+	
+	/**
+	 * Lists the names of the entries of the global state that are bound to the specified user.
+	 * @param user the user, or {@code null} for the entries bound to no user
+	 * @return the entry names, a snapshot that does not follow later changes
+	 */
+	public static Set<String> globalKeys(User.Type user) { return keys(bucket(GLOBAL, user, false)); }
+	
+	/**
+	 * Returns the number of entries of the calling endpoint's local state, for all users.
+	 * Entries that expired within the last second may still be counted.
+	 * @return the number of entries
+	 */
+	public static long localSize()
+	{
+		Partition p = partitions.get(endpoint());
+		return p == null ? 0 : p.count.get();
+	}
+	
+	/**
+	 * Returns the number of entries of the calling endpoint's local state that are bound to the specified user.
+	 * Entries that expired within the last second may still be counted.
+	 * @param user the user, or {@code null} for the entries bound to no user
+	 * @return the number of entries
+	 */
+	public static long localSize(User.Type user)
+	{
+		Bucket b = bucket(endpoint(), user, false);
+		return b == null ? 0 : b.count.get();
+	}
+	
+	/**
+	 * Returns the number of entries of the global state, for all users.
+	 * Entries that expired within the last second may still be counted.
+	 * @return the number of entries
+	 */
+	public static long globalSize()
+	{
+		Partition p = partitions.get(GLOBAL);
+		return p == null ? 0 : p.count.get();
+	}
+	
+	/**
+	 * Returns the number of entries of the global state that are bound to the specified user.
+	 * Entries that expired within the last second may still be counted.
+	 * @param user the user, or {@code null} for the entries bound to no user
+	 * @return the number of entries
+	 */
+	public static long globalSize(User.Type user)
+	{
+		Bucket b = bucket(GLOBAL, user, false);
+		return b == null ? 0 : b.count.get();
+	}
+	
+	/**
+	 * Removes all the entries of the calling endpoint's local state, for all users.
+	 */
+	public static void localClear()
+	{
+		Partition p = partitions.get(endpoint());
+		if( p != null )
+			for( Bucket b : p.buckets.values() )
+				clear(b);
+	}
+	
+	/**
+	 * Removes the entries of the calling endpoint's local state that are bound to the specified user.
+	 * @param user the user, or {@code null} for the entries bound to no user
+	 */
+	public static void localClear(User.Type user) { clear(bucket(endpoint(), user, false)); }
+	
+	/**
+	 * Removes all the entries of the global state, for all users.
+	 */
+	public static void globalClear()
+	{
+		Partition p = partitions.get(GLOBAL);
+		if( p != null )
+			for( Bucket b : p.buckets.values() )
+				clear(b);
+	}
+	
+	/**
+	 * Removes the entries of the global state that are bound to the specified user.
+	 * @param user the user, or {@code null} for the entries bound to no user
+	 */
+	public static void globalClear(User.Type user) { clear(bucket(GLOBAL, user, false)); }
 }
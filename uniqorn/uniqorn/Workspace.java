@@ -12,6 +12,9 @@ import aeonics.template.Relationship;
 import aeonics.template.Template;
 import aeonics.util.StringUtils;
 import aeonics.util.Tuples.Tuple;
+import uniqorn.internal.Metrics;
+import uniqorn.internal.RouteTable;
+import uniqorn.internal.WorkQueue;
 
 public class Workspace extends Item<Workspace.Type>
 {
@@ -26,11 +29,24 @@ public class Workspace extends Item<Workspace.Type>
 		public SnapshotMode snapshotMode() { return SnapshotMode.NONE; }
 		public boolean internal() { return false; }
 		
+		@Override
+		public <T extends Entity> T parameter(String key, Object value)
+		{
+			T self = super.parameter(key, value);
+			// the routes are published under the prefix
+			if( "prefix".equals(key) ) RouteTable.invalidate();
+			return self;
+		}
+		
 		public void close()
 		{
 			// delete cascade
 			for( Tuple<Entity, Data> e : relations("endpoints") )
 				Registry.of(Endpoint.class).remove(e.a);
+			Metrics.forgetWorkspace(name());
+			WorkQueue.forget(name());
+			Batch.forget(name());
+			RouteTable.invalidate();
 		}
 	}
 	
@@ -1,10 +1,13 @@
 package uniqorn.database;
 
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.function.Supplier;
 
 import aeonics.entity.Database;
 import aeonics.template.Parameter;
 import aeonics.template.Template;
+import uniqorn.internal.Deadline;
 
 public class Pgsql extends Database
 {
@@ -25,6 +28,17 @@ public class Pgsql extends Database
 				entity.<Database.Type>cast().refreshPoolSize();
 			});
 		}
+		
+		private final Deadline.Pool timeouts = new Deadline.Pool();
+		
+		@Override
+		public Connection connection() throws SQLException
+		{
+			// do not borrow a connection for a request that is already past its deadline
+			Deadline.check();
+			// bound the queries by the deadline of the request
+			return timeouts.bound(super.connection());
+		}
 	}
 	
 	protected Class<? extends Database.Type> defaultTarget() { return Pgsql.Type.class; }
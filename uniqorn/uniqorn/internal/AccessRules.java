@@ -0,0 +1,111 @@
+package uniqorn.internal;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import aeonics.entity.security.User;
+
+/**
+ * The compiled access rules of an endpoint.
+ * <p>
+ * User names are case folded once into hash sets so matching a user costs three lookups, with the
+ * same result as comparing them with {@link String#equalsIgnoreCase(String)}. Role and group rules
+ * ask the user on every call, so a role or membership that is revoked applies to the very next call.
+ */
+public class AccessRules
+{
+	private final Set<String> allowedUsers;
+	private final Set<String> deniedUsers;
+	private final String[] allowedRoles;
+	private final String[] deniedRoles;
+	private final String[] allowedGroups;
+	private final String[] deniedGroups;
+	private final boolean restricted;
+
+	/**
+	 * Compiles the access rules
+	 * @param allowedUsers the allowed user ids, names or logins
+	 * @param allowedRoles the allowed roles
+	 * @param allowedGroups the allowed groups
+	 * @param deniedUsers the denied user ids, names or logins
+	 * @param deniedRoles the denied roles
+	 * @param deniedGroups the denied groups
+	 */
+	public AccessRules(Collection<String> allowedUsers, Collection<String> allowedRoles, Collection<String> allowedGroups,
+		Collection<String> deniedUsers, Collection<String> deniedRoles, Collection<String> deniedGroups)
+	{
+		this.allowedUsers = normalize(allowedUsers);
+		this.deniedUsers = normalize(deniedUsers);
+		this.allowedRoles = names(allowedRoles);
+		this.deniedRoles = names(deniedRoles);
+		this.allowedGroups = names(allowedGroups);
+		this.deniedGroups = names(deniedGroups);
+		// allow by default if there is no other allow
+		this.restricted = !allowedUsers.isEmpty() || !allowedRoles.isEmpty() || !allowedGroups.isEmpty();
+	}
+
+	private static Set<String> normalize(Collection<String> values)
+	{
+		Set<String> set = new HashSet<>();
+		for( String v : values )
+			if( v != null && !v.isBlank() )
+				set.add(fold(v));
+		return Set.copyOf(set);
+	}
+
+	private static String[] names(Collection<String> values)
+	{
+		Set<String> set = new LinkedHashSet<>();
+		for( String v : values )
+			if( v != null && !v.isBlank() )
+				set.add(v);
+		return set.toArray(new String[0]);
+	}
+
+	/**
+	 * Checks if the specified user may call the endpoint
+	 * @param user the user
+	 * @return true if the user is allowed
+	 */
+	public boolean allows(User.Type user)
+	{
+		if( matches(deniedUsers, user) ) return false;
+		boolean allowed = matches(allowedUsers, user);
+
+		for( String role : deniedRoles )
+			if( user.hasRole(role) )
+				return false;
+
+		if( !allowed )
+			for( String role : allowedRoles )
+				if( user.hasRole(role) ) { allowed = true; break; }
+
+		for( String group : deniedGroups )
+			if( user.isMemberOf(group) )
+				return false;
+
+		if( !allowed )
+			for( String group : allowedGroups )
+				if( user.isMemberOf(group) ) { allowed = true; break; }
+
+		return allowed || !restricted;
+	}
+
+	private static boolean matches(Set<String> users, User.Type user)
+	{
+		if( users.isEmpty() ) return false;
+		return users.contains(fold(user.id())) || users.contains(fold(user.name())) || users.contains(fold(user.login()));
+	}
+
+	// two strings fold to the same value exactly when equalsIgnoreCase matches them, which is not
+	// the case of toLowerCase: it maps some characters to several and depends on the locale
+	private static String fold(String value)
+	{
+		if( value == null ) return "";
+		StringBuilder s = new StringBuilder(value.length());
+		value.codePoints().forEach(c -> s.appendCodePoint(Character.toLowerCase(Character.toUpperCase(c))));
+		return s.toString();
+	}
+}
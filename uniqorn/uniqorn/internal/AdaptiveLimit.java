@@ -0,0 +1,125 @@
+package uniqorn.internal;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adjusts the concurrency limit of an {@link Admission} controller from the observed handler
+ * latency and error rate (additive increase, multiplicative decrease).
+ * <p>
+ * Samples are aggregated in windows of at least {@value #WINDOW_MILLIS} ms. At the end of a window
+ * the limit is reduced by 10% if more than 10% of the calls failed or if the average latency exceeds
+ * twice the no-load latency. Otherwise it is increased by one if the calls actually used it.
+ * <p>
+ * The no-load latency tracks the lowest window averages. It slowly drifts up with the healthy windows
+ * to follow genuine changes, but never with the overloaded ones, so a sustained overload keeps the
+ * limit down instead of becoming the new normal. Only once the limit reached its minimum, where the
+ * load is as low as it gets, does an overloaded window count as the no-load latency of the endpoint.
+ */
+public class AdaptiveLimit
+{
+	private static final long WINDOW_MILLIS = 250;
+	private static final double TOLERANCE = 2.0;
+	private static final double BACKOFF = 0.9;
+	private static final double ERROR_RATE = 0.1;
+	private static final double DRIFT = 0.01;
+
+	private final int min;
+	private final int max;
+	private final LongAdder count = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder latency = new LongAdder();
+	private final AtomicInteger peak = new AtomicInteger(0);
+	private final AtomicBoolean updating = new AtomicBoolean(false);
+	private volatile long windowStart = System.nanoTime();
+	private double baseline = 0;
+
+	/**
+	 * Creates a new adaptive limit
+	 * @param min the lowest limit
+	 * @param max the highest limit
+	 */
+	public AdaptiveLimit(int min, int max)
+	{
+		this.min = Math.max(1, min);
+		this.max = Math.max(this.min, max);
+	}
+
+	/**
+	 * The limit to start with
+	 * @return the initial limit
+	 */
+	public int initial()
+	{
+		return Math.min(max, Math.max(min, 20));
+	}
+
+	/**
+	 * The lowest limit
+	 * @return the minimum
+	 */
+	public int min() { return min; }
+
+	/**
+	 * The highest limit
+	 * @return the maximum
+	 */
+	public int max() { return max; }
+
+	/**
+	 * Records that a call started
+	 * @param active the number of calls running, including this one
+	 */
+	public void started(int active)
+	{
+		int p;
+		while( (p = peak.get()) < active && !peak.compareAndSet(p, active) ) { }
+	}
+
+	/**
+	 * Records a finished call and adjusts the limit at the end of a window
+	 * @param admission the controller to resize
+	 * @param nanos the handler processing time
+	 * @param failed whether the call failed
+	 */
+	public void sample(Admission admission, long nanos, boolean failed)
+	{
+		count.increment();
+		latency.add(nanos);
+		if( failed ) errors.increment();
+
+		long now = System.nanoTime();
+		if( now - windowStart < WINDOW_MILLIS * 1_000_000L || !updating.compareAndSet(false, true) )
+			return;
+
+		try
+		{
+			windowStart = now;
+			long n = count.sumThenReset();
+			long e = errors.sumThenReset();
+			long sum = latency.sumThenReset();
+			int used = peak.getAndSet(admission.active());
+			if( n == 0 ) return;
+
+			double average = (double) sum / n;
+			int limit = admission.limit();
+			boolean overloaded = e > n * ERROR_RATE || (baseline > 0 && average > baseline * TOLERANCE);
+			if( baseline == 0 || average < baseline ) baseline = average;
+			else if( !overloaded || limit <= min ) baseline += (average - baseline) * DRIFT;
+
+			int next = limit;
+			if( overloaded )
+				next = Math.max(min, (int) Math.floor(limit * BACKOFF));
+			else if( used >= limit )
+				next = Math.min(max, limit + 1);
+
+			if( next != limit )
+				admission.resize(next);
+		}
+		finally
+		{
+			updating.set(false);
+		}
+	}
+}
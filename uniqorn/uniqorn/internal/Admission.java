@@ -0,0 +1,228 @@
+package uniqorn.internal;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import aeonics.http.HttpException;
+
+/**
+ * Admission control of an endpoint: bounds the number of calls running at once.
+ * <p>
+ * A call takes a free slot without locking when nobody is waiting. Otherwise it waits in a first-in
+ * first-out queue and each release wakes exactly one waiter. When the queue is full, or when a call
+ * waited longer than allowed, it is rejected with HTTP 503 so that a saturated endpoint sheds load
+ * instead of piling up threads.
+ * <p>
+ * The limit is either fixed or continuously adjusted by an {@link AdaptiveLimit}.
+ */
+public class Admission
+{
+	private static class Slots extends Semaphore
+	{
+		private static final long serialVersionUID = 1L;
+		private Slots(int permits) { super(permits, true); }
+		private void reduce(int permits) { reducePermits(permits); }
+	}
+
+	private final String name;
+	private final Slots slots;
+	// written under the lock of resize, read without it on the hot path of the adaptive limit
+	private volatile int limit;
+	private volatile long maxWait;
+	private volatile int maxQueue;
+	private final AtomicInteger waiting = new AtomicInteger(0);
+	private final AtomicInteger active = new AtomicInteger(0);
+	private final LongAdder queued = new LongAdder();
+	private final LongAdder waited = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private volatile AdaptiveLimit adaptive = null;
+
+	/**
+	 * Creates a new admission controller
+	 * @param name the metric name of the endpoint
+	 * @param limit the number of calls allowed to run at once
+	 * @param maxWaitMillis the longest a call waits for a slot, in milliseconds, or a negative value to wait indefinitely
+	 * @param maxQueue the maximum number of waiting calls, or a negative value for no limit
+	 */
+	public Admission(String name, int limit, long maxWaitMillis, int maxQueue)
+	{
+		this.name = name;
+		this.limit = Math.max(1, limit);
+		this.slots = new Slots(this.limit);
+		this.maxWait = maxWaitMillis;
+		this.maxQueue = maxQueue;
+	}
+
+	/**
+	 * The longest a call waits for a slot
+	 * @return the wait in milliseconds, or a negative value to wait indefinitely
+	 */
+	public long maxWait() { return maxWait; }
+
+	/**
+	 * Changes the admission settings, calls that already run keep their slot
+	 * @param limit the number of calls allowed to run at once
+	 * @param maxWaitMillis the longest a call waits for a slot, in milliseconds, or a negative value to wait indefinitely
+	 * @param maxQueue the maximum number of waiting calls, or a negative value for no limit
+	 */
+	public void configure(int limit, long maxWaitMillis, int maxQueue)
+	{
+		this.maxWait = maxWaitMillis;
+		this.maxQueue = maxQueue;
+		resize(limit);
+	}
+
+	/**
+	 * Lets the limit follow the observed latency and errors within the bounds of the specified adaptive limit,
+	 * or fixes it again
+	 * @param adaptive the adaptive limit, or null to keep the current limit fixed
+	 */
+	public void adaptive(AdaptiveLimit adaptive)
+	{
+		this.adaptive = adaptive;
+		if( adaptive != null )
+			resize(Math.min(adaptive.max(), Math.max(adaptive.min(), limit())));
+	}
+
+	/**
+	 * The adaptive limit that adjusts this controller
+	 * @return the adaptive limit or null if the limit is fixed
+	 */
+	public AdaptiveLimit adaptive() { return adaptive; }
+
+	/**
+	 * Changes the number of calls allowed to run at once. When the limit shrinks, running calls
+	 * finish normally and the new limit applies as they release their slot.
+	 * @param limit the new limit
+	 */
+	public synchronized void resize(int limit)
+	{
+		limit = Math.max(1, limit);
+		if( limit > this.limit ) slots.release(limit - this.limit);
+		else if( limit < this.limit ) slots.reduce(this.limit - limit);
+		this.limit = limit;
+	}
+
+	/**
+	 * Takes a slot, waiting in line if none is free
+	 * @throws HttpException 503 if the queue is full, the wait is too long or the thread is interrupted,
+	 * 504 if the deadline of the request passes while waiting
+	 */
+	public void acquire()
+	{
+		// fast path: do not barge in front of the calls already waiting
+		if( waiting.get() == 0 && slots.tryAcquire() )
+		{
+			started();
+			return;
+		}
+
+		int depth = waiting.incrementAndGet();
+		long start = System.nanoTime();
+		try
+		{
+			int max = maxQueue;
+			if( max >= 0 && depth > max )
+			{
+				rejected.increment();
+				Metrics.add(Globals.MONITOR_TYPE_ADMISSION, name, "rejected", 0);
+				throw new HttpException(503, "The endpoint is busy, please retry later");
+			}
+
+			queued.increment();
+			long wait = maxWait;
+			// never wait past the deadline of the request
+			long left = Deadline.remaining();
+			boolean bounded = left != Long.MAX_VALUE && (wait < 0 || left < wait);
+			if( bounded ) wait = left;
+			boolean admitted;
+			if( wait < 0 )
+			{
+				slots.acquire();
+				admitted = true;
+			}
+			else
+				admitted = slots.tryAcquire(wait, TimeUnit.MILLISECONDS);
+
+			long elapsed = System.nanoTime() - start;
+			waited.add(elapsed);
+			if( !admitted )
+			{
+				rejected.increment();
+				Metrics.add(Globals.MONITOR_TYPE_ADMISSION, name, "timeout", elapsed);
+				if( bounded ) throw Deadline.expired();
+				throw new HttpException(503, "The endpoint is busy, please retry later");
+			}
+
+			started();
+			Metrics.add(Globals.MONITOR_TYPE_ADMISSION, name, "queued", elapsed);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new HttpException(503, "The request was interrupted while waiting for a free slot");
+		}
+		finally
+		{
+			waiting.decrementAndGet();
+		}
+	}
+
+	private void started()
+	{
+		int running = active.incrementAndGet();
+		AdaptiveLimit a = adaptive;
+		if( a != null ) a.started(running);
+	}
+
+	/**
+	 * Releases a slot taken with {@link #acquire()} and hands it to the next waiting call
+	 * @param nanos the time the call held the slot
+	 * @param failed whether the call failed
+	 */
+	public void release(long nanos, boolean failed)
+	{
+		active.decrementAndGet();
+		slots.release();
+		AdaptiveLimit a = adaptive;
+		if( a != null ) a.sample(this, nanos, failed);
+	}
+
+	/**
+	 * The number of calls allowed to run at once
+	 * @return the limit
+	 */
+	public int limit() { return limit; }
+
+	/**
+	 * The number of calls currently running
+	 * @return the active calls
+	 */
+	public int active() { return active.get(); }
+
+	/**
+	 * The number of calls currently waiting for a slot
+	 * @return the queue length
+	 */
+	public int waiting() { return waiting.get(); }
+
+	/**
+	 * The number of calls that had to wait for a slot
+	 * @return the queued calls
+	 */
+	public long queued() { return queued.sum(); }
+
+	/**
+	 * The total time spent waiting for a slot
+	 * @return the wait time in nanoseconds
+	 */
+	public long waited() { return waited.sum(); }
+
+	/**
+	 * The number of calls rejected because the queue was full or the wait too long
+	 * @return the rejected calls
+	 */
+	public long rejected() { return rejected.sum(); }
+}
@@ -0,0 +1,170 @@
+package uniqorn.internal;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import aeonics.http.HttpException;
+import aeonics.util.Functions.Supplier;
+
+/**
+ * The deadline of the current request, set by <code>Api.timeout</code>.
+ * <p>
+ * The deadline belongs to the thread that runs the handler and is handed to the chained calls, so a
+ * chained endpoint never gets more time than its caller has left. Blocking operations bound their own
+ * waits with {@link #timeout(long)}, so that a request past its deadline fails with HTTP 504 instead of
+ * waiting for a socket timeout.
+ * <p>
+ * Deadlines are expressed in {@link System#nanoTime()}, zero meaning no deadline.
+ */
+public class Deadline
+{
+	private static final ThreadLocal<Long> current = ThreadLocal.withInitial(() -> 0L);
+
+	/**
+	 * The deadline of the current thread
+	 * @return the deadline or zero if there is none
+	 */
+	public static long get()
+	{
+		return current.get();
+	}
+
+	/**
+	 * Returns the earliest of the current deadline and the specified timeout from now
+	 * @param timeoutMillis the timeout in milliseconds, zero or less for none
+	 * @return the deadline or zero if there is none
+	 */
+	public static long within(long timeoutMillis)
+	{
+		long d = current.get();
+		if( timeoutMillis <= 0 ) return d;
+		long t = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		return d == 0 || t - d < 0 ? t : d;
+	}
+
+	/**
+	 * Sets the deadline of the current thread
+	 * @param deadline the deadline or zero for none
+	 */
+	public static void set(long deadline)
+	{
+		current.set(deadline);
+	}
+
+	/**
+	 * Runs a task with the specified deadline and restores the previous one after
+	 * @param <T> the result type
+	 * @param deadline the deadline or zero for none
+	 * @param task the task
+	 * @return the task result
+	 * @throws Exception the task error
+	 */
+	public static <T> T run(long deadline, Supplier<T> task) throws Exception
+	{
+		long previous = current.get();
+		current.set(deadline);
+		try
+		{
+			return task.get();
+		}
+		finally
+		{
+			current.set(previous);
+		}
+	}
+
+	/**
+	 * The time left before the deadline
+	 * @return the time left in milliseconds, zero if the deadline passed, or {@link Long#MAX_VALUE} if there is none
+	 */
+	public static long remaining()
+	{
+		long d = current.get();
+		if( d == 0 ) return Long.MAX_VALUE;
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(d - System.nanoTime()));
+	}
+
+	/**
+	 * Fails if the deadline passed
+	 * @throws HttpException 504 if the deadline passed
+	 */
+	public static void check()
+	{
+		long d = current.get();
+		if( d != 0 && d - System.nanoTime() <= 0 )
+			throw expired();
+	}
+
+	/**
+	 * Bounds the timeout of a blocking operation by the time left
+	 * @param timeoutMillis the usual timeout of the operation in milliseconds
+	 * @return the smallest of the usual timeout and the time left
+	 * @throws HttpException 504 if the deadline passed
+	 */
+	public static int timeout(long timeoutMillis)
+	{
+		check();
+		return (int) Math.max(1, Math.min(timeoutMillis, Math.min(remaining(), Integer.MAX_VALUE)));
+	}
+
+	/**
+	 * The usual network timeout of the connections of a database pool. A connection is bounded by the
+	 * deadline of the request that borrows it, and gets the usual timeout back when it is borrowed again
+	 * without one. Each pool keeps its own, so bounding a connection never waits for the other pools.
+	 */
+	public static final class Pool
+	{
+		// the network timeout of the connections before any was bounded, -1 until the first is borrowed
+		private volatile int original = -1;
+
+		/**
+		 * Bounds the network operations of a connection of this pool by the time left. A connection that
+		 * cannot be bounded, for instance because the deadline passed while it was borrowed, is closed,
+		 * which gives it back to the pool.
+		 * @param connection the connection
+		 * @return the connection
+		 * @throws SQLException if the connection is closed
+		 * @throws HttpException 504 if the deadline passed
+		 */
+		public Connection bound(Connection connection) throws SQLException
+		{
+			if( connection == null ) return null;
+			try
+			{
+				int usual = original;
+				if( usual < 0 )
+				{
+					// connections are only ever bounded through here, the first one still has its own timeout
+					try { usual = connection.getNetworkTimeout(); }
+					catch(java.sql.SQLFeatureNotSupportedException e) { usual = 0; }
+					original = usual;
+				}
+				int timeout = current.get() == 0 ? usual : timeout(Integer.MAX_VALUE);
+				if( connection.getNetworkTimeout() != timeout )
+					// the executor only runs the abort of a timed out connection
+					connection.setNetworkTimeout(Runnable::run, timeout);
+			}
+			catch(java.sql.SQLFeatureNotSupportedException e)
+			{
+				// the driver cannot bound its calls
+			}
+			catch(SQLException | RuntimeException e)
+			{
+				try { connection.close(); }
+				catch(SQLException x) { e.addSuppressed(x); }
+				throw e;
+			}
+			return connection;
+		}
+	}
+
+	/**
+	 * The error of a request past its deadline
+	 * @return an HTTP 504 error
+	 */
+	public static HttpException expired()
+	{
+		return new HttpException(504, "The request did not complete in time");
+	}
+}
@@ -0,0 +1,83 @@
+package uniqorn.internal;
+
+import java.util.Map;
+
+import aeonics.data.Data;
+
+/**
+ * Entity tag helpers for conditional GET requests.
+ */
+public class ETags
+{
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Computes a weak entity tag from the serialized form of a response body.
+	 * The tag is a 64 bits FNV-1a hash, which is cheap and good enough to detect changes.
+	 * @param body the response body
+	 * @return the entity tag, quoted
+	 */
+	public static String of(Data body)
+	{
+		return of(body == null ? "" : body.toString());
+	}
+
+	/**
+	 * Computes a weak entity tag from a string.
+	 * @param value the value to hash
+	 * @return the entity tag, quoted
+	 */
+	public static String of(String value)
+	{
+		long hash = 0xcbf29ce484222325L;
+		for( int i = 0; i < value.length(); i++ )
+		{
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+
+		char[] tag = new char[20];
+		tag[0] = 'W'; tag[1] = '/'; tag[2] = '"'; tag[19] = '"';
+		for( int i = 0; i < 16; i++ )
+			tag[3 + i] = HEX[(int) (hash >>> (60 - 4 * i)) & 0xF];
+		return new String(tag);
+	}
+
+	/**
+	 * Checks if an <code>If-None-Match</code> header value matches the specified tag, using the weak comparison
+	 * @param header the header value, may be null
+	 * @param tag the current entity tag
+	 * @return true if the client already has the current representation
+	 */
+	public static boolean matches(String header, String tag)
+	{
+		if( header == null || header.isBlank() || tag == null ) return false;
+		String current = opaque(tag);
+		for( String candidate : header.split(",") )
+		{
+			candidate = candidate.trim();
+			if( candidate.equals("*") || opaque(candidate).equals(current) ) return true;
+		}
+		return false;
+	}
+
+	private static String opaque(String tag)
+	{
+		return tag.startsWith("W/") ? tag.substring(2) : tag;
+	}
+
+	/**
+	 * Finds a header value regardless of the header name case
+	 * @param headers the headers map, may be null
+	 * @param name the header name
+	 * @return the header value or null if absent
+	 */
+	public static String header(Data headers, String name)
+	{
+		if( headers == null || !headers.isMap() ) return null;
+		for( Map.Entry<String, Data> e : headers.entrySet() )
+			if( e.getKey().equalsIgnoreCase(name) && !e.getValue().isEmpty() )
+				return e.getValue().asString();
+		return null;
+	}
+}
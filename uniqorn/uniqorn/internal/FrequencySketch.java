@@ -0,0 +1,85 @@
+package uniqorn.internal;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Approximate access frequency of keys, used to pick eviction victims.
+ * <p>
+ * This is a count-min sketch of 4 rows with counters saturating at 15. All counters are halved
+ * once the number of recorded accesses reaches ten times the width, so the frequencies follow
+ * the recent popularity of the keys rather than their whole history. Updates are not atomic across
+ * rows, which only makes the estimate slightly less accurate. Saturated counters are only read, so
+ * recording the accesses of a hot key does not contend.
+ */
+public class FrequencySketch
+{
+	private static final int DEPTH = 4;
+	private static final int MAX = 15;
+	private static final int[] SEEDS = { 0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f };
+
+	private final int mask;
+	private final AtomicIntegerArray counters;
+	private final LongAdder additions = new LongAdder();
+	private final long period;
+
+	/**
+	 * Creates a new sketch
+	 * @param width the number of counters per row, rounded up to a power of two
+	 */
+	public FrequencySketch(int width)
+	{
+		int w = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+		this.mask = w - 1;
+		this.counters = new AtomicIntegerArray(w * DEPTH);
+		this.period = 10L * w;
+	}
+
+	private int index(int hash, int row)
+	{
+		int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+		h ^= h >>> 16;
+		return row * (mask + 1) + (h & mask);
+	}
+
+	/**
+	 * Records an access
+	 * @param hash the key hash
+	 */
+	public void increment(int hash)
+	{
+		for( int row = 0; row < DEPTH; row++ )
+		{
+			int i = index(hash, row);
+			int c = counters.get(i);
+			if( c < MAX ) counters.compareAndSet(i, c, c + 1);
+		}
+		additions.increment();
+		// checking the total is not free, do it from time to time
+		if( (ThreadLocalRandom.current().nextInt() & 63) == 0 && additions.sum() >= period )
+		{
+			additions.reset();
+			age();
+		}
+	}
+
+	/**
+	 * Returns the estimated number of recent accesses
+	 * @param hash the key hash
+	 * @return the frequency, between 0 and 15
+	 */
+	public int frequency(int hash)
+	{
+		int min = MAX;
+		for( int row = 0; row < DEPTH; row++ )
+			min = Math.min(min, counters.get(index(hash, row)));
+		return min;
+	}
+
+	private void age()
+	{
+		for( int i = 0; i < counters.length(); i++ )
+			counters.set(i, counters.get(i) >>> 1);
+	}
+}
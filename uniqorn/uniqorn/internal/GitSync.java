@@ -291,6 +291,9 @@ public class GitSync
 			}
 		}
 		
+		// the registry changed under the router, publish the new routes
+		RouteTable.invalidate();
+		
 		long end = System.currentTimeMillis();
 		human.append("Done: created=" + created + " updated=" + updated + " removed=" + deleted + " ignored=" + ignored.a + " error=" + (error + wwwError.a) + " in " + (end-start) + "ms\n");
 		human.append("---------------\n");
@@ -382,5 +385,7 @@ public class GitSync
 				}
 			}
 		}
+		
+		RouteTable.invalidate();
 	}
 }
@@ -13,4 +13,12 @@ public class Globals
 	public static final String MONITOR_TYPE_ENDPOINT = "endpoint";
 	public static final String MONITOR_TYPE_USER = "user";
 	public static final String MONITOR_TYPE_CUSTOM = "custom";
+	public static final String MONITOR_TYPE_RATELIMIT = "ratelimit";
+	public static final String MONITOR_TYPE_CACHE = "cache";
+	public static final String MONITOR_TYPE_ADMISSION = "admission";
+	public static final String MONITOR_TYPE_LOCK = "lock";
+	public static final String MONITOR_TYPE_STATE = "state";
+	public static final String MONITOR_TYPE_DEFER = "defer";
+	public static final String MONITOR_TYPE_BATCH = "batch";
+	public static final String MONITOR_TYPE_DEADLINE = "deadline";
 }
@@ -0,0 +1,154 @@
+package uniqorn.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of non-negative values, typically latencies in nanoseconds.
+ * <p>
+ * Values are grouped by power of two, and each power of two is split in 16 linear sub-buckets,
+ * so any recorded value is known within about 6%. Values above 2^40 (about 18 minutes in nanos)
+ * are clamped to the last bucket. Recording is a single atomic increment and never allocates, all the
+ * buckets are allocated with the histogram. Histograms with the same layout can be merged by adding
+ * their counts.
+ */
+public class Histogram
+{
+	private static final int SUB_BITS = 4;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int MAX_MAGNITUDE = 40;
+	/**
+	 * The number of buckets of every histogram
+	 */
+	public static final int BUCKETS = (MAX_MAGNITUDE - SUB_BITS + 2) * SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**
+	 * Returns the bucket index of the specified value
+	 * @param value the value
+	 * @return the bucket index
+	 */
+	public static int index(long value)
+	{
+		if( value < SUB ) return value < 0 ? 0 : (int) value;
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		if( magnitude > MAX_MAGNITUDE ) return BUCKETS - 1;
+		return (magnitude - SUB_BITS + 1) * SUB + (int) ((value >>> (magnitude - SUB_BITS)) - SUB);
+	}
+
+	/**
+	 * Returns the smallest value that falls in the specified bucket
+	 * @param index the bucket index
+	 * @return the lower bound of the bucket
+	 */
+	public static long lower(int index)
+	{
+		if( index < SUB ) return index;
+		int magnitude = index / SUB + SUB_BITS - 1;
+		return ((long) (index % SUB + SUB)) << (magnitude - SUB_BITS);
+	}
+
+	/**
+	 * Returns the largest value that falls in the specified bucket
+	 * @param index the bucket index
+	 * @return the upper bound of the bucket
+	 */
+	public static long upper(int index)
+	{
+		if( index < SUB ) return index;
+		return lower(index + 1) - 1;
+	}
+
+	/**
+	 * Records one value
+	 * @param value the value
+	 */
+	public void record(long value)
+	{
+		counts.incrementAndGet(index(value));
+		long m = max.get();
+		while( value > m && !max.compareAndSet(m, value) )
+			m = max.get();
+	}
+
+	/**
+	 * Adds the counts of this histogram to the specified buckets
+	 * @param buckets the target buckets of size {@link #BUCKETS}
+	 * @return the largest value recorded in this histogram
+	 */
+	public long mergeInto(long[] buckets)
+	{
+		for( int i = 0; i < BUCKETS; i++ )
+			buckets[i] += counts.get(i);
+		return max.get();
+	}
+
+	/**
+	 * Adds a fraction of the counts of this histogram to the specified buckets
+	 * @param buckets the target buckets of size {@link #BUCKETS}
+	 * @param weight the fraction of each count to add, between 0 and 1
+	 */
+	public void mergeInto(double[] buckets, double weight)
+	{
+		for( int i = 0; i < BUCKETS; i++ )
+			buckets[i] += counts.get(i) * weight;
+	}
+
+	/**
+	 * Clears all counts
+	 */
+	public void reset()
+	{
+		for( int i = 0; i < BUCKETS; i++ )
+			counts.set(i, 0);
+		max.set(0);
+	}
+
+	/**
+	 * Returns the total number of values in the specified buckets
+	 * @param buckets the buckets
+	 * @return the number of values
+	 */
+	public static long count(long[] buckets)
+	{
+		long total = 0;
+		for( long c : buckets ) total += c;
+		return total;
+	}
+
+	/**
+	 * Returns the approximate sum of the values in the specified buckets
+	 * @param buckets the buckets
+	 * @return the sum of the bucket midpoints weighted by their counts
+	 */
+	public static long sum(long[] buckets)
+	{
+		long total = 0;
+		for( int i = 0; i < buckets.length; i++ )
+			if( buckets[i] > 0 )
+				total += buckets[i] * ((lower(i) + upper(i)) / 2);
+		return total;
+	}
+
+	/**
+	 * Returns the approximate value at the specified percentile of the buckets
+	 * @param buckets the buckets
+	 * @param percentile the percentile between 0 and 100
+	 * @return the midpoint of the bucket holding the percentile, or 0 if empty
+	 */
+	public static long percentile(long[] buckets, double percentile)
+	{
+		long total = count(buckets);
+		if( total == 0 ) return 0;
+		long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100d));
+		long seen = 0;
+		for( int i = 0; i < buckets.length; i++ )
+		{
+			seen += buckets[i];
+			if( seen >= rank ) return (lower(i) + upper(i)) / 2;
+		}
+		return upper(buckets.length - 1);
+	}
+}
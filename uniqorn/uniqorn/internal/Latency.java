@@ -0,0 +1,130 @@
+package uniqorn.internal;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency distribution of an endpoint or a workspace.
+ * <p>
+ * Values are recorded in a cumulative {@link Histogram} since startup and in one histogram per minute,
+ * from which rolling windows are merged on demand. The minute histograms form a ring allocated with the
+ * distribution: {@link #rotate(long)} clears the slot of the next minute ahead of time, so recording a
+ * value never allocates. A value recorded while its minute is not prepared, which only happens if the
+ * rotation stalls for a whole minute, is kept in the cumulative histogram only.
+ * <p>
+ * A window of N minutes covers exactly the last N minutes: the current minute so far, the N - 1 minutes
+ * before it, and the share of the minute before those that is still inside the window. That last minute
+ * is weighted by the fraction of it the window covers, assuming its values were spread evenly.
+ */
+public class Latency
+{
+	/**
+	 * The longest window in minutes
+	 */
+	public static final int MINUTES = 15;
+
+	// the current minute, the minutes of the longest window, the partial minute and the next minute
+	private static final int SLOTS = MINUTES + 2;
+
+	private static class Slot
+	{
+		private volatile long minute = Long.MIN_VALUE;
+		private final Histogram histogram = new Histogram();
+	}
+
+	private final Histogram total = new Histogram();
+	private final LongAdder sum = new LongAdder();
+	private final Slot[] slots = new Slot[SLOTS];
+
+	public Latency()
+	{
+		for( int i = 0; i < SLOTS; i++ )
+			slots[i] = new Slot();
+		long minute = System.currentTimeMillis() / 60_000;
+		slots[(int) (minute % SLOTS)].minute = minute;
+		slots[(int) ((minute + 1) % SLOTS)].minute = minute + 1;
+	}
+
+	/**
+	 * Records one latency value
+	 * @param nanos the latency in nanoseconds
+	 */
+	public void record(long nanos)
+	{
+		total.record(nanos);
+		sum.add(nanos);
+
+		long minute = System.currentTimeMillis() / 60_000;
+		Slot slot = slots[(int) (minute % SLOTS)];
+		if( slot.minute == minute )
+			slot.histogram.record(nanos);
+	}
+
+	/**
+	 * Prepares the slots of the current and of the next minute, clearing the values they hold from
+	 * the minutes that are too old to be part of any window. Called every second by the metrics flush.
+	 * @param now the current time in millis
+	 */
+	public void rotate(long now)
+	{
+		long minute = now / 60_000;
+		prepare(minute);
+		prepare(minute + 1);
+	}
+
+	private void prepare(long minute)
+	{
+		Slot slot = slots[(int) (minute % SLOTS)];
+		if( slot.minute == minute ) return;
+		slot.histogram.reset();
+		slot.minute = minute;
+	}
+
+	/**
+	 * Merges the histograms of the last minutes
+	 * @param minutes the window length in minutes, at most {@value #MINUTES}
+	 * @return the merged buckets
+	 */
+	public long[] window(int minutes)
+	{
+		minutes = Math.max(1, Math.min(MINUTES, minutes));
+		long now = System.currentTimeMillis();
+		long minute = now / 60_000;
+		double[] merged = new double[Histogram.BUCKETS];
+		for( int i = 0; i < minutes; i++ )
+			merge(merged, minute - i, 1);
+		// the part of the oldest minute that is still inside the window
+		merge(merged, minute - minutes, 1 - (now % 60_000) / 60_000d);
+
+		long[] buckets = new long[Histogram.BUCKETS];
+		for( int i = 0; i < buckets.length; i++ )
+			buckets[i] = Math.round(merged[i]);
+		return buckets;
+	}
+
+	private void merge(double[] merged, long minute, double weight)
+	{
+		Slot slot = slots[(int) (minute % SLOTS)];
+		if( weight > 0 && slot.minute == minute )
+			slot.histogram.mergeInto(merged, weight);
+	}
+
+	/**
+	 * Returns the cumulative buckets since startup
+	 * @return the cumulative buckets
+	 */
+	public long[] total()
+	{
+		long[] buckets = new long[Histogram.BUCKETS];
+		total.mergeInto(buckets);
+		return buckets;
+	}
+
+	/**
+	 * Returns the exact sum of all recorded values since startup
+	 * @return the sum in nanoseconds
+	 */
+	public long sum()
+	{
+		return sum.sum();
+	}
+}
@@ -0,0 +1,129 @@
+package uniqorn.internal;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.LongAdder;
+
+import aeonics.data.Data;
+import aeonics.util.Functions.Supplier;
+
+/**
+ * The lock table behind the <code>Api.atomic</code> blocks.
+ * <p>
+ * Keyed blocks lock one of {@value #STRIPES} read/write stripes chosen by the key hash, so blocks on
+ * unrelated keys run in parallel. Instance-wide blocks take the write side of a global lock of which
+ * every keyed block holds the read side, so they still exclude every other block on the instance.
+ * <p>
+ * Each stripe counts how often it was acquired and how often, and how long, a thread had to wait for it.
+ */
+public class Locks
+{
+	private static final int STRIPES = 64;
+
+	private static class Stripe
+	{
+		private final String name;
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		private final LongAdder acquired = new LongAdder();
+		private final LongAdder contended = new LongAdder();
+		private final LongAdder waited = new LongAdder();
+		private Stripe(String name) { this.name = name; }
+	}
+
+	private static final Stripe global = new Stripe("global");
+	private static final Stripe[] stripes = new Stripe[STRIPES];
+
+	static
+	{
+		for( int i = 0; i < STRIPES; i++ )
+			stripes[i] = new Stripe("stripe-" + i);
+	}
+
+	/**
+	 * Runs the operation while holding the instance-wide lock, which excludes every other atomic block
+	 * @param <T> the operation return type
+	 * @param operation the operation
+	 * @return the operation result
+	 * @throws Exception the operation error
+	 * @throws IllegalStateException if called within a keyed block, which would deadlock
+	 */
+	public static <T> T global(Supplier<T> operation) throws Exception
+	{
+		if( global.lock.getReadHoldCount() > 0 )
+			throw new IllegalStateException("An instance-wide atomic block cannot run within a keyed atomic block");
+
+		Lock lock = global.lock.writeLock();
+		lock(global, lock);
+		try { return operation.get(); }
+		finally { lock.unlock(); }
+	}
+
+	/**
+	 * Runs the operation while holding the stripe of the specified key
+	 * @param <T> the operation return type
+	 * @param key the lock key
+	 * @param write whether the operation needs exclusive access, otherwise it shares the stripe with other readers
+	 * @param operation the operation
+	 * @return the operation result
+	 * @throws Exception the operation error
+	 * @throws IllegalStateException if a write block is requested within a read block of the same stripe, which would deadlock
+	 */
+	public static <T> T keyed(String key, boolean write, Supplier<T> operation) throws Exception
+	{
+		int h = key.hashCode();
+		Stripe stripe = stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+		if( write && stripe.lock.getReadHoldCount() > 0 )
+			throw new IllegalStateException("A read atomic block cannot be upgraded to a write block");
+
+		Lock outer = global.lock.readLock();
+		outer.lock();
+		try
+		{
+			Lock lock = write ? stripe.lock.writeLock() : stripe.lock.readLock();
+			lock(stripe, lock);
+			try { return operation.get(); }
+			finally { lock.unlock(); }
+		}
+		finally
+		{
+			outer.unlock();
+		}
+	}
+
+	private static void lock(Stripe stripe, Lock lock)
+	{
+		stripe.acquired.increment();
+		if( lock.tryLock() ) return;
+
+		long start = System.nanoTime();
+		lock.lock();
+		long elapsed = System.nanoTime() - start;
+		stripe.contended.increment();
+		stripe.waited.add(elapsed);
+		Metrics.add(Globals.MONITOR_TYPE_LOCK, stripe.name, "contended", elapsed);
+	}
+
+	/**
+	 * Returns the usage of the locks that have been acquired at least once
+	 * @return the list of lock statistics
+	 */
+	public static Data stats()
+	{
+		Data list = Data.list();
+		stats(list, global);
+		for( Stripe s : stripes )
+			stats(list, s);
+		return list;
+	}
+
+	private static void stats(Data list, Stripe s)
+	{
+		long acquired = s.acquired.sum();
+		if( acquired == 0 ) return;
+		list.add(Data.map()
+			.put("lock", s.name)
+			.put("acquired", acquired)
+			.put("contended", s.contended.sum())
+			.put("wait", s.waited.sum() / 1_000_000d));
+	}
+}
@@ -0,0 +1,230 @@
+package uniqorn.internal;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import aeonics.manager.Manager;
+import aeonics.manager.Monitor;
+import aeonics.manager.Timeout;
+import aeonics.manager.Timeout.Tracker;
+
+/**
+ * Aggregates uniqorn metrics in memory and flushes them into the {@link Monitor} every second.
+ * <p>
+ * Recording a hit only increments striped {@link LongAdder} counters found through plain map lookups,
+ * so the request path never synchronizes on the monitor. Call latencies are also recorded per endpoint
+ * and per workspace in {@link Latency} distributions exposed by the {@link UniqornMetrics} endpoint.
+ * <p>
+ * Each flush pushes one sample per metric that was hit during the last second, whatever the number of
+ * hits: the sub name carries the summed value and the sub name followed by {@value #COUNT} carries the
+ * number of hits. A flush therefore costs the same under load as when idle. This is a breaking change
+ * for the monitor consumers: every hit used to be a sample of its own, see {@link uniqorn.Api#metrics(String, long)}.
+ * <p>
+ * Metrics idle for a whole second are dropped. A hit that lands on a metric while it is dropped is
+ * moved to the metric that replaces it, so no hit is lost.
+ */
+public class Metrics
+{
+	/**
+	 * The suffix of the sub name that carries the number of hits of a metric
+	 */
+	public static final String COUNT = ".count";
+
+	private static class Cell
+	{
+		private final LongAdder count = new LongAdder();
+		private final LongAdder value = new LongAdder();
+		private volatile boolean retired = false;
+	}
+
+	private static class Name
+	{
+		private final ConcurrentHashMap<String, Cell> subs = new ConcurrentHashMap<>();
+		private volatile boolean retired = false;
+	}
+
+	// type -> name -> sub name -> cell
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<String, Name>> cells = new ConcurrentHashMap<>();
+	// endpoint id -> latency
+	private static final ConcurrentHashMap<String, Latency> endpoints = new ConcurrentHashMap<>();
+	// workspace name -> latency
+	private static final ConcurrentHashMap<String, Latency> workspaces = new ConcurrentHashMap<>();
+	private static final String[] CODES = new String[1000];
+
+	static
+	{
+		for( int i = 0; i < CODES.length; i++ )
+			CODES[i] = String.valueOf(i);
+
+		Manager.of(Timeout.class).watch(new Tracker<Void>("Uniqorn Metrics Flush")
+		{
+			public long delay()
+			{
+				flush();
+				return 1_000;
+			}
+		});
+	}
+
+	/**
+	 * Returns the shared string representation of an http status code
+	 * @param code the status code
+	 * @return the code as a string
+	 */
+	public static String code(int code)
+	{
+		return code >= 0 && code < CODES.length ? CODES[code] : String.valueOf(code);
+	}
+
+	/**
+	 * Records one hit for the specified metric
+	 * @param type the metric type in the {@link Globals#MONITOR_CATEGORY} category
+	 * @param name the metric name
+	 * @param sub the metric sub name
+	 * @param value the value to accumulate
+	 */
+	public static void add(String type, String name, String sub, long value)
+	{
+		add(type, name, sub, 1, value);
+	}
+
+	private static void add(String type, String name, String sub, long count, long value)
+	{
+		ConcurrentHashMap<String, Name> byName = cells.get(type);
+		if( byName == null ) byName = cells.computeIfAbsent(type, k -> new ConcurrentHashMap<>());
+		Name n = byName.get(name);
+		if( n == null ) n = byName.computeIfAbsent(name, k -> new Name());
+		Cell cell = n.subs.get(sub);
+		if( cell == null ) cell = n.subs.computeIfAbsent(sub, k -> new Cell());
+		cell.count.add(count);
+		if( value != 0 ) cell.value.add(value);
+
+		// the flush dropped the metric meanwhile and may have missed this hit: move what is left to the
+		// metric that replaces it. Both sides take the hits with sumThenReset so each is counted once.
+		if( cell.retired || n.retired )
+		{
+			long c = cell.count.sumThenReset();
+			long v = cell.value.sumThenReset();
+			if( c != 0 || v != 0 ) add(type, name, sub, c, v);
+		}
+	}
+
+	/**
+	 * Records a call handled by the router
+	 * @param endpoint the endpoint id, or null if the call was not routed
+	 * @param workspace the workspace name, or null if the call was not routed
+	 * @param path the request path
+	 * @param user the user login
+	 * @param code the http status code
+	 * @param nanos the processing time in nanoseconds
+	 */
+	public static void request(String endpoint, String workspace, String path, String user, int code, long nanos)
+	{
+		String c = code(code);
+		add(Globals.MONITOR_TYPE_ENDPOINT, path, c, nanos);
+		add(Globals.MONITOR_TYPE_USER, user, c, nanos);
+		if( endpoint != null )
+			latency(endpoints, endpoint).record(nanos);
+		if( workspace != null )
+			latency(workspaces, workspace).record(nanos);
+	}
+
+	private static Latency latency(ConcurrentHashMap<String, Latency> map, String key)
+	{
+		Latency l = map.get(key);
+		if( l == null ) l = map.computeIfAbsent(key, k -> new Latency());
+		return l;
+	}
+
+	/**
+	 * Returns the latency distribution of the specified endpoint
+	 * @param endpoint the endpoint id
+	 * @return the latency or null if the endpoint has not been called
+	 */
+	public static Latency endpoint(String endpoint)
+	{
+		return endpoint == null ? null : endpoints.get(endpoint);
+	}
+
+	/**
+	 * Returns the latency distribution of the specified workspace
+	 * @param workspace the workspace name
+	 * @return the latency or null if the workspace has not been called
+	 */
+	public static Latency workspace(String workspace)
+	{
+		return workspace == null ? null : workspaces.get(workspace);
+	}
+
+	/**
+	 * Drops the metrics of an endpoint that does not exist anymore
+	 * @param endpoint the endpoint id
+	 */
+	public static void forget(String endpoint)
+	{
+		if( endpoint != null ) endpoints.remove(endpoint);
+	}
+
+	/**
+	 * Drops the metrics of a workspace that does not exist anymore
+	 * @param workspace the workspace name
+	 */
+	public static void forgetWorkspace(String workspace)
+	{
+		if( workspace != null ) workspaces.remove(workspace);
+	}
+
+	/**
+	 * Pushes the aggregated hits into the monitor
+	 */
+	public static void flush()
+	{
+		// prepare the latency slots of the next minute before it starts
+		long now = System.currentTimeMillis();
+		for( Latency l : endpoints.values() ) l.rotate(now);
+		for( Latency l : workspaces.values() ) l.rotate(now);
+		
+		Monitor monitor = Manager.of(Monitor.class);
+		for( Map.Entry<String, ConcurrentHashMap<String, Name>> type : cells.entrySet() )
+		{
+			Iterator<Map.Entry<String, Name>> names = type.getValue().entrySet().iterator();
+			while( names.hasNext() )
+			{
+				Map.Entry<String, Name> name = names.next();
+				Name n = name.getValue();
+				Iterator<Map.Entry<String, Cell>> subs = n.subs.entrySet().iterator();
+				while( subs.hasNext() )
+				{
+					Map.Entry<String, Cell> sub = subs.next();
+					Cell cell = sub.getValue();
+					if( cell.count.sum() == 0 )
+					{
+						// idle since the last flush: drop it, the hits that race with the removal are moved by add()
+						cell.retired = true;
+						subs.remove();
+					}
+					push(monitor, type.getKey(), name.getKey(), sub.getKey(), cell);
+				}
+				if( n.subs.isEmpty() )
+				{
+					n.retired = true;
+					names.remove();
+					// cells created after the check above
+					for( Map.Entry<String, Cell> sub : n.subs.entrySet() )
+						push(monitor, type.getKey(), name.getKey(), sub.getKey(), sub.getValue());
+				}
+			}
+		}
+	}
+
+	private static void push(Monitor monitor, String type, String name, String sub, Cell cell)
+	{
+		long count = cell.count.sumThenReset();
+		long value = cell.value.sumThenReset();
+		if( count == 0 ) return;
+		monitor.add(Globals.MONITOR_CATEGORY, type, name, sub, value);
+		monitor.add(Globals.MONITOR_CATEGORY, type, name, sub + COUNT, count);
+	}
+}
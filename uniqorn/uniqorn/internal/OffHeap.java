@@ -0,0 +1,211 @@
+package uniqorn.internal;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import aeonics.data.Data;
+import aeonics.util.Json;
+
+/**
+ * A large state value held outside of the heap.
+ * <p>
+ * Byte arrays, strings and {@link Data} whose estimated size reaches the configured threshold are
+ * serialized into a direct buffer, so they neither weigh on the heap nor get copied by the garbage
+ * collector. A {@link Data} is only moved off-heap when its JSON form reads back as the same structure
+ * with the same values; one that holds values JSON cannot carry, or numbers it would write differently,
+ * stays on the heap. The total size of the buffers is bounded by the configured capacity; a value that
+ * does not fit stays on the heap. Reading the value allocates and deserializes a fresh copy every time, so
+ * changing the returned value does not change the stored one, and frequent reads of a large value cost
+ * more than they would on the heap.
+ * <p>
+ * The state {@link #release() releases} a value when it replaces, removes or evicts it, which gives its
+ * capacity back at once. The direct buffer itself is freed by the garbage collector once unreachable,
+ * since a reader may still hold the value; a value that is never released gives its capacity back then.
+ */
+public class OffHeap
+{
+	private static final byte BYTES = 0;
+	private static final byte STRING = 1;
+	private static final byte DATA = 2;
+
+	private static final Cleaner cleaner = Cleaner.create();
+	private static final AtomicLong used = new AtomicLong(0);
+	private static volatile long threshold = 0;
+	private static volatile long capacity = 0;
+
+	private final ByteBuffer buffer;
+	private final byte type;
+	private Cleaner.Cleanable cleanable = null;
+
+	private OffHeap(ByteBuffer buffer, byte type)
+	{
+		this.buffer = buffer;
+		this.type = type;
+	}
+
+	// gives the capacity back, must not reference the value
+	private static class Release implements Runnable
+	{
+		private final long size;
+		private Release(long size) { this.size = size; }
+		public void run() { used.addAndGet(-size); }
+	}
+
+	/**
+	 * Changes the settings, values already stored are kept
+	 * @param threshold the estimated size in bytes from which values are stored off-heap, zero or less to disable
+	 * @param capacity the maximum total size in bytes of the values stored off-heap, zero or less to disable
+	 */
+	public static void configure(long threshold, long capacity)
+	{
+		OffHeap.threshold = threshold;
+		OffHeap.capacity = capacity;
+	}
+
+	/**
+	 * The total size of the values currently stored off-heap
+	 * @return the size in bytes
+	 */
+	public static long used() { return used.get(); }
+
+	/**
+	 * Moves a value off-heap if it is large enough and there is room for it
+	 * @param value the value
+	 * @param weight the estimated size of the value, see {@link Weigher}
+	 * @return the off-heap value, or the value itself if it stays on the heap
+	 */
+	public static Object store(Object value, long weight)
+	{
+		long t = threshold, max = capacity;
+		if( t <= 0 || max <= 0 || weight < t ) return value;
+
+		byte[] bytes = bytes(value);
+		if( bytes == null ) return value;
+
+		long size = bytes.length;
+		for(;;)
+		{
+			long u = used.get();
+			if( u + size > max ) return value;
+			if( used.compareAndSet(u, u + size) ) break;
+		}
+
+		ByteBuffer buffer;
+		try
+		{
+			buffer = ByteBuffer.allocateDirect(bytes.length);
+		}
+		catch(OutOfMemoryError e)
+		{
+			// the direct memory of the JVM is exhausted
+			used.addAndGet(-size);
+			return value;
+		}
+		buffer.put(bytes).flip();
+
+		OffHeap o = new OffHeap(buffer, type(value));
+		o.cleanable = cleaner.register(o, new Release(size));
+		return o;
+	}
+
+	/**
+	 * Gives the capacity of the value back, once the state no longer holds it. The value can still be
+	 * read by those who got it before. Releasing a value more than once has no effect.
+	 */
+	public void release()
+	{
+		// a cleanable runs its action once, whether released or collected first
+		cleanable.clean();
+	}
+
+	// the serialized form of a value that can be held off-heap, or null
+	private static byte[] bytes(Object value)
+	{
+		if( value instanceof byte[] ) return (byte[]) value;
+		if( value instanceof String ) return ((String) value).getBytes(StandardCharsets.UTF_8);
+		if( value instanceof Data )
+		{
+			String json = value.toString();
+			Data copy;
+			try { copy = Json.decode(json); }
+			catch(Exception e) { return null; }
+			return same((Data) value, copy) ? json.getBytes(StandardCharsets.UTF_8) : null;
+		}
+		return null;
+	}
+
+	// whether a Data read back from its JSON form has the same structure and values
+	private static boolean same(Data a, Data b)
+	{
+		if( a == null || b == null ) return a == b;
+		if( a.isMap() )
+		{
+			if( !b.isMap() || a.size() != b.size() ) return false;
+			for( Map.Entry<String, Data> e : a.entrySet() )
+				if( !b.containsKey(e.getKey()) || !same(e.getValue(), b.get(e.getKey())) ) return false;
+			return true;
+		}
+		if( a.isList() )
+		{
+			if( !b.isList() || a.size() != b.size() ) return false;
+			Iterator<Data> i = b.iterator();
+			for( Data e : a )
+				if( !same(e, i.next()) ) return false;
+			return true;
+		}
+		if( a.isNull() ) return b.isNull();
+		if( a.isString() ) return b.isString() && a.asString().equals(b.asString());
+		if( a.isBool() ) return b.isBool() && a.asBool() == b.asBool();
+		// a number must read back as the same text, a long must not come back as a double
+		if( a.isNumber() ) return b.isNumber() && a.asString().equals(b.asString());
+		// any other value is written as text
+		return false;
+	}
+
+	private static byte type(Object value)
+	{
+		if( value instanceof byte[] ) return BYTES;
+		if( value instanceof String ) return STRING;
+		return DATA;
+	}
+
+	/**
+	 * Checks if a value has the same type and serialized form as the stored one
+	 * @param value the value to compare
+	 * @return true if the values are equal by content
+	 */
+	public boolean matches(Object value)
+	{
+		byte[] bytes = bytes(value);
+		if( bytes == null || type(value) != type ) return false;
+		// a duplicate has its own position, so concurrent reads do not interfere
+		return buffer.duplicate().equals(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Deserializes a copy of the value
+	 * @return the value
+	 */
+	public Object get()
+	{
+		byte[] bytes = new byte[buffer.limit()];
+		// a duplicate has its own position, so concurrent reads do not interfere
+		buffer.duplicate().get(bytes);
+		switch( type )
+		{
+			case STRING: return new String(bytes, StandardCharsets.UTF_8);
+			case DATA: return Json.decode(new String(bytes, StandardCharsets.UTF_8));
+			default: return bytes;
+		}
+	}
+
+	/**
+	 * The size of the serialized value
+	 * @return the size in bytes
+	 */
+	public long size() { return buffer.limit(); }
+}
@@ -0,0 +1,207 @@
+package uniqorn.internal;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import aeonics.data.Data;
+import aeonics.entity.security.User;
+import aeonics.manager.Config;
+import aeonics.manager.Manager;
+import aeonics.manager.Timeout;
+import aeonics.manager.Timeout.Tracker;
+import uniqorn.Api;
+import uniqorn.Router;
+
+/**
+ * Token bucket rate limiting per endpoint, per user and per client ip.
+ * <p>
+ * Each bucket is a single theoretical arrival time updated with compare-and-set (GCRA), which behaves
+ * exactly like a token bucket refilled at {@code rate} tokens per second holding up to {@code burst}
+ * tokens, without any lock. Buckets that are full again are dropped by a background sweep since a
+ * fresh bucket is equivalent.
+ * <p>
+ * Rates and bursts are read from the {@link Api} configuration and refreshed every second. The endpoint
+ * rate defaults to {@link Router#rate}.
+ */
+public class RateLimiter
+{
+	public static final String SCOPE_ENDPOINT = "endpoint";
+	public static final String SCOPE_USER = "user";
+	public static final String SCOPE_IP = "ip";
+
+	private static class Bucket
+	{
+		private final AtomicLong tat = new AtomicLong(System.nanoTime());
+
+		/**
+		 * Takes one token
+		 * @return 0 if a token was available, otherwise the nanos to wait before one is
+		 */
+		private long take(long interval, long tolerance)
+		{
+			while( true )
+			{
+				long now = System.nanoTime();
+				long current = tat.get();
+				long next = (current - now < 0 ? now : current) + interval;
+				long excess = next - now - tolerance;
+				if( excess > 0 ) return excess;
+				if( tat.compareAndSet(current, next) ) return 0;
+			}
+		}
+
+		/**
+		 * Gives back a token taken with {@link #take(long, long)}
+		 */
+		private void refund(long interval)
+		{
+			tat.addAndGet(-interval);
+		}
+
+		private boolean full(long now, long tolerance)
+		{
+			return now - tat.get() >= tolerance;
+		}
+	}
+
+	private static class Limit
+	{
+		private final long interval;
+		private final long tolerance;
+
+		private Limit(double rate, double burst)
+		{
+			interval = rate > 0 ? Math.max(1, (long) (1_000_000_000d / rate)) : 0;
+			tolerance = interval * Math.max(1, (long) burst);
+		}
+
+		private boolean enabled() { return interval > 0; }
+	}
+
+	private static final ConcurrentHashMap<String, Bucket> endpoints = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, Bucket> users = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, Bucket> ips = new ConcurrentHashMap<>();
+
+	private static volatile Limit endpointLimit = null;
+	private static volatile Limit userLimit = null;
+	private static volatile Limit ipLimit = null;
+	private static volatile long refreshed = 0;
+
+	static
+	{
+		Manager.of(Timeout.class).watch(new Tracker<Void>("Uniqorn Rate Limit Tracker")
+		{
+			public long delay()
+			{
+				refresh();
+				long now = System.nanoTime();
+				sweep(endpoints, endpointLimit, now);
+				sweep(users, userLimit, now);
+				sweep(ips, ipLimit, now);
+				return 60_000;
+			}
+		});
+	}
+
+	private static void sweep(ConcurrentHashMap<String, Bucket> buckets, Limit limit, long now)
+	{
+		Iterator<Bucket> i = buckets.values().iterator();
+		while( i.hasNext() )
+		{
+			Bucket b = i.next();
+			if( limit == null || !limit.enabled() || b.full(now, limit.tolerance) )
+				i.remove();
+		}
+	}
+
+	private static void refresh()
+	{
+		Config config = Manager.of(Config.class);
+		Data rate = config.get(Api.class, "ratelimit.endpoint.rate");
+		Data burst = config.get(Api.class, "ratelimit.endpoint.burst");
+		// the endpoint rate defaults to the platform-wide rate
+		double r = rate.isEmpty() ? Router.rate : rate.asDouble();
+		endpointLimit = new Limit(r, burst.isEmpty() ? r : burst.asDouble());
+		userLimit = new Limit(
+			config.get(Api.class, "ratelimit.user.rate").asDouble(),
+			config.get(Api.class, "ratelimit.user.burst").asDouble());
+		ipLimit = new Limit(
+			config.get(Api.class, "ratelimit.ip.rate").asDouble(),
+			config.get(Api.class, "ratelimit.ip.burst").asDouble());
+		refreshed = System.nanoTime();
+	}
+
+	private static long take(ConcurrentHashMap<String, Bucket> buckets, String key, Limit limit)
+	{
+		if( key == null || limit == null || !limit.enabled() ) return 0;
+		Bucket b = buckets.get(key);
+		if( b == null ) b = buckets.computeIfAbsent(key, k -> new Bucket());
+		return b.take(limit.interval, limit.tolerance);
+	}
+
+	private static void refund(ConcurrentHashMap<String, Bucket> buckets, String key, Limit limit)
+	{
+		if( key == null || limit == null || !limit.enabled() ) return;
+		Bucket b = buckets.get(key);
+		if( b != null ) b.refund(limit.interval);
+	}
+
+	/**
+	 * Takes one token from the ip, user and endpoint buckets of a request.
+	 * A request rejected by one bucket gives its token back to the buckets checked before, so a throttled
+	 * client does not spend its own budget on rejected calls. Rejections are counted in the {@link Globals#MONITOR_CATEGORY} metrics.
+	 * @param endpoint the endpoint id
+	 * @param user the authenticated user, anonymous and system users are not limited individually
+	 * @param ip the client ip, or null for internal calls
+	 * @param path the request path used as metric name
+	 * @return 0 if the request may proceed, otherwise the nanos after which it may be retried
+	 */
+	public static long acquire(String endpoint, User.Type user, String ip, String path)
+	{
+		if( refreshed == 0 || System.nanoTime() - refreshed > 1_000_000_000L )
+			refresh();
+
+		// the limits may be refreshed meanwhile, refund with the ones the tokens were taken with
+		Limit ipl = ipLimit, userl = userLimit, endpointl = endpointLimit;
+		String id = user != null && user != User.ANONYMOUS && user != User.SYSTEM ? user.id() : null;
+
+		String scope = SCOPE_IP;
+		long wait = take(ips, ip, ipl);
+		if( wait == 0 )
+		{
+			scope = SCOPE_USER;
+			wait = take(users, id, userl);
+			if( wait > 0 ) refund(ips, ip, ipl);
+		}
+		if( wait == 0 )
+		{
+			scope = SCOPE_ENDPOINT;
+			wait = take(endpoints, endpoint, endpointl);
+			if( wait > 0 )
+			{
+				refund(ips, ip, ipl);
+				refund(users, id, userl);
+			}
+		}
+
+		if( wait > 0 )
+			Metrics.add(Globals.MONITOR_TYPE_RATELIMIT, path, scope, 0);
+		return wait;
+	}
+
+	/**
+	 * Builds the 429 response for a rejected request
+	 * @param wait the nanos after which the request may be retried
+	 * @return the http response
+	 */
+	public static Data reject(long wait)
+	{
+		long seconds = Math.max(1, (wait + 999_999_999L) / 1_000_000_000L);
+		return Data.map()
+			.put("isHttpResponse", true)
+			.put("code", 429)
+			.put("headers", Data.map().put("Retry-After", String.valueOf(seconds)))
+			.put("body", Data.map().put("error", Data.map().put("message", "Call rate limit exceeded")));
+	}
+}
@@ -0,0 +1,497 @@
+package uniqorn.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import aeonics.data.Data;
+import aeonics.http.HttpException;
+import aeonics.manager.Config;
+import aeonics.manager.Executor;
+import aeonics.manager.Logger;
+import aeonics.manager.Manager;
+import aeonics.manager.Timeout;
+import aeonics.manager.Timeout.Tracker;
+import aeonics.util.Http;
+import uniqorn.Api;
+import uniqorn.State;
+
+/**
+ * Propagates the changes of the global state to the peer instances.
+ * <p>
+ * The peers are listed in the <code>state.replication.peers</code> configuration and receive the
+ * changes on their {@link UniqornReplication} endpoint. Changes are coalesced per entry so only the
+ * last value of an entry is sent, and counter increments are summed and sent as deltas so that
+ * concurrent increments on several instances add up.
+ * <p>
+ * The changes are sent in numbered batches every 100ms, one flush at a time. Each peer has its own
+ * backlog: a batch it fails to receive is sent again, in order, until it does, and the peer ignores a
+ * batch it already applied, so a retried increment is counted once. A backlog that grows beyond
+ * {@value #BACKLOG} changes is dropped and the peer is sent the whole global state instead once it is
+ * reachable again; the increments made while that copy is taken may then be counted twice on that peer.
+ * <p>
+ * Each batch is signed with an HMAC-SHA256 of the shared <code>state.replication.secret</code>, which
+ * itself is never sent, and carries the time it was sent so that it cannot be replayed later. The
+ * signature does not hide the values: use https peer urls unless the network is trusted.
+ * <p>
+ * In <code>async</code> consistency, the default, writes never wait for the peers. In <code>sync</code>
+ * consistency, a write of the global state returns once every peer acknowledged it, and fails with
+ * HTTP 503 if they did not within the deadline of the request, or {@value #WAIT}ms without one. The
+ * write is already applied locally by then and stays in the backlog of the peers that missed it.
+ * <p>
+ * In <code>invalidate</code> mode, peers are told to drop their copy of an entry rather than receive
+ * the new value. Conflicting writes are resolved by keeping the most recent one according to the clock
+ * of the writing instance, and the one of the greatest {@link #NODE} when both were made in the same
+ * millisecond, so every instance keeps the same value.
+ */
+public class Replication
+{
+	/**
+	 * The header carrying the signature of a batch
+	 */
+	public static final String HEADER = "X-Uniqorn-Replication";
+
+	/**
+	 * The unique id of this instance, so that an instance listed among its own peers ignores its changes
+	 */
+	public static final String NODE = UUID.randomUUID().toString();
+
+	/**
+	 * The maximum age in milliseconds of a batch accepted by a peer
+	 */
+	public static final long SKEW = 300_000;
+
+	// the changes kept for an unreachable peer before it is resynchronized instead
+	private static final int BACKLOG = 100_000;
+	// the changes sent in a single batch when resynchronizing a peer
+	private static final int CHUNK = 1_000;
+	// the wait of a sync write without a deadline
+	private static final long WAIT = 5_000;
+
+	private static class Delta
+	{
+		private final String user;
+		private final String key;
+		private final long until;
+		private final LongAdder sum = new LongAdder();
+		private Delta(String user, String key, long until)
+		{
+			this.user = user;
+			this.key = key;
+			this.until = until;
+		}
+	}
+
+	// a batch of changes, covering the changes recorded up to a ticket
+	private static class Batch
+	{
+		private final long id;
+		private final long upto;
+		private final String changes;
+		private final int size;
+		private Batch(long id, long upto, Data changes)
+		{
+			this.id = id;
+			this.upto = upto;
+			this.changes = changes.toString();
+			this.size = changes.size();
+		}
+	}
+
+	// a peer and its backlog, guarded by the flushing flag except for the acknowledged ticket
+	private static class Peer
+	{
+		private final String url;
+		private final ArrayDeque<Batch> backlog = new ArrayDeque<>();
+		private long queued = 0;
+		private boolean resync = false;
+		private long retry = 0;
+		private long backoff = 0;
+		// the ticket of the last change this peer received
+		private volatile long acked = 0;
+		private Peer(String url) { this.url = url; }
+	}
+
+	// the last change of each entry by user and key
+	private static final ConcurrentHashMap<String, Data> pending = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, Delta> deltas = new ConcurrentHashMap<>();
+	private static final AtomicBoolean flushing = new AtomicBoolean(false);
+	// a ticket is taken after each recorded change, a batch covers the tickets taken before it is drained
+	private static final AtomicLong recorded = new AtomicLong(0);
+	private static final AtomicLong batches = new AtomicLong(0);
+	// the sync writes waiting for the peers, notified when a peer acknowledges a batch
+	private static final AtomicInteger waiting = new AtomicInteger(0);
+	private static final Object acks = new Object();
+
+	private static volatile Peer[] peers = new Peer[0];
+	private static volatile String secret = null;
+	private static volatile boolean invalidate = false;
+	private static volatile boolean sync = false;
+	private static volatile long configured = 0;
+	// whether a peer has batches to receive again
+	private static volatile boolean backlogged = false;
+	private static String listed = null;
+
+	static
+	{
+		configure();
+		Manager.of(Timeout.class).watch(new Tracker<Void>("Uniqorn State Replication")
+		{
+			public long delay()
+			{
+				long now = System.currentTimeMillis();
+				if( now - configured >= 5_000 ) configure();
+
+				if( (!pending.isEmpty() || !deltas.isEmpty() || backlogged) && !flushing.get() )
+				{
+					// do not block the other trackers on the network
+					Manager.of(Executor.class).normal(Replication::flush).or(e ->
+						Manager.of(Logger.class).warning(Replication.class, e));
+				}
+				return 100;
+			}
+		});
+	}
+
+	private static synchronized void configure()
+	{
+		configured = System.currentTimeMillis();
+		Config config = Manager.of(Config.class);
+
+		String value = config.get(Api.class, "state.replication.peers").asString();
+		secret = config.get(Api.class, "state.replication.secret").asString();
+		invalidate = "invalidate".equalsIgnoreCase(config.get(Api.class, "state.replication.mode").asString());
+		sync = "sync".equalsIgnoreCase(config.get(Api.class, "state.replication.consistency").asString());
+
+		// replication needs both peers and a secret
+		if( value == null || secret == null || secret.isBlank() ) value = "";
+		if( value.equals(listed) ) return;
+		listed = value;
+
+		// the peers that are still listed keep their backlog
+		List<Peer> list = new ArrayList<>();
+		for( String url : value.split("[,\\s]+") )
+		{
+			if( url.isBlank() ) continue;
+			while( url.endsWith("/") ) url = url.substring(0, url.length() - 1);
+			Peer peer = null;
+			for( Peer p : peers )
+				if( p.url.equals(url) ) peer = p;
+			list.add(peer != null ? peer : new Peer(url));
+			if( !url.startsWith("https://") )
+				Manager.of(Logger.class).warning(Replication.class, "State changes are sent to {} unencrypted", url);
+		}
+		peers = list.toArray(new Peer[0]);
+		if( peers.length == 0 )
+		{
+			pending.clear();
+			deltas.clear();
+		}
+		synchronized(acks) { acks.notifyAll(); }
+	}
+
+	/**
+	 * Checks if the global state is replicated
+	 * @return true if there are peers to send the changes to
+	 */
+	public static boolean enabled() { return peers.length > 0; }
+
+	/**
+	 * Signs a batch with the shared secret
+	 * @param node the instance that sent the batch
+	 * @param batch the batch number
+	 * @param time the time the batch was sent
+	 * @param changes the changes in their JSON form
+	 * @return the hex encoded signature, or null if replication is not configured
+	 */
+	public static String sign(String node, long batch, long time, String changes)
+	{
+		String s = secret;
+		if( s == null || s.isBlank() ) return null;
+		try
+		{
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(s.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+			byte[] signature = mac.doFinal((node + "\n" + batch + "\n" + time + "\n" + changes).getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder(signature.length * 2);
+			for( byte b : signature )
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return hex.toString();
+		}
+		catch(Exception e)
+		{
+			throw new IllegalStateException("HMAC error", e);
+		}
+	}
+
+	private static String id(String user, String key) { return user + '\u0000' + key; }
+
+	/**
+	 * Records a new value of an entry
+	 * @param user the user the entry is bound to, or an empty string
+	 * @param key the entry name
+	 * @param value the value in its snapshot form, see {@link StateCodec}, or null if it cannot be sent
+	 * @param until the expiration time of the entry, or zero if it does not expire
+	 * @param stamp the time of the write
+	 * @return the ticket of the change, see {@link #await(long)}
+	 */
+	public static long set(String user, String key, Data value, long until, long stamp)
+	{
+		if( value == null || invalidate )
+			return remove(user, key, stamp);
+		pending.put(id(user, key), Data.map()
+			.put("op", "set")
+			.put("u", user)
+			.put("k", key)
+			.put("v", value)
+			.put("e", until)
+			.put("s", stamp));
+		return recorded.incrementAndGet();
+	}
+
+	/**
+	 * Records the removal of an entry
+	 * @param user the user the entry is bound to, or an empty string
+	 * @param key the entry name
+	 * @param stamp the time of the removal
+	 * @return the ticket of the change, see {@link #await(long)}
+	 */
+	public static long remove(String user, String key, long stamp)
+	{
+		pending.put(id(user, key), Data.map()
+			.put("op", "del")
+			.put("u", user)
+			.put("k", key)
+			.put("s", stamp));
+		return recorded.incrementAndGet();
+	}
+
+	/**
+	 * Records an increment of a counter
+	 * @param user the user the counter is bound to, or an empty string
+	 * @param key the counter name
+	 * @param delta the value added
+	 * @param until the expiration time of the counter if it must be created, or zero if it does not expire
+	 * @return the ticket of the change, see {@link #await(long)}
+	 */
+	public static long add(String user, String key, long delta, long until)
+	{
+		String id = id(user, key);
+		for(;;)
+		{
+			Delta d = deltas.computeIfAbsent(id, x -> new Delta(user, key, until));
+			d.sum.add(delta);
+			if( deltas.get(id) == d ) break;
+			// the sender dropped it meanwhile, move the increment to the current one
+			d.sum.add(-delta);
+		}
+		return recorded.incrementAndGet();
+	}
+
+	/**
+	 * Waits until every peer received a change, in <code>sync</code> consistency only
+	 * @param ticket the ticket of the change
+	 * @throws HttpException 503 if a peer did not acknowledge the change in time
+	 */
+	public static void await(long ticket)
+	{
+		if( !sync || ticket <= 0 || delivered(ticket) ) return;
+
+		long wait = Math.min(WAIT, Deadline.remaining());
+		long until = System.currentTimeMillis() + wait;
+		waiting.incrementAndGet();
+		try
+		{
+			Manager.of(Executor.class).normal(Replication::flush);
+			synchronized(acks)
+			{
+				while( !delivered(ticket) )
+				{
+					long left = until - System.currentTimeMillis();
+					if( left <= 0 )
+						throw new HttpException(503, "The state change was not replicated in time");
+					acks.wait(left);
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new HttpException(503, "The state change was not replicated in time");
+		}
+		finally
+		{
+			waiting.decrementAndGet();
+		}
+	}
+
+	private static boolean delivered(long ticket)
+	{
+		for( Peer peer : peers )
+			if( peer.acked < ticket ) return false;
+		return true;
+	}
+
+	/**
+	 * Sends the recorded changes to every peer along with the batches they missed, unless a flush is
+	 * already running
+	 */
+	public static void flush()
+	{
+		// overlapping flushes would send the changes out of order
+		if( !flushing.compareAndSet(false, true) ) return;
+		try
+		{
+			long upto;
+			boolean sent;
+			do
+			{
+				upto = recorded.get();
+				Data changes = drain();
+				if( !changes.isEmpty() )
+				{
+					Batch batch = new Batch(batches.incrementAndGet(), upto, changes);
+					for( Peer peer : peers )
+						queue(peer, batch);
+				}
+
+				sent = true;
+				for( Peer peer : peers )
+					sent &= send(peer, upto);
+			}
+			// sync writes recorded during the flush do not wait for the next one
+			while( sent && waiting.get() > 0 && recorded.get() > upto );
+		}
+		finally
+		{
+			boolean left = false;
+			for( Peer peer : peers )
+				left |= peer.resync || !peer.backlog.isEmpty();
+			backlogged = left;
+			flushing.set(false);
+		}
+	}
+
+	// takes the recorded changes
+	private static Data drain()
+	{
+		Data changes = Data.list();
+		for( Map.Entry<String, Data> e : pending.entrySet() )
+			if( pending.remove(e.getKey(), e.getValue()) )
+				changes.add(e.getValue());
+
+		for( Map.Entry<String, Delta> e : deltas.entrySet() )
+		{
+			Delta d = e.getValue();
+			// increments made meanwhile stay for the next flush
+			long sum = d.sum.sum();
+			d.sum.add(-sum);
+			if( sum == 0 )
+			{
+				// idle since the last flush
+				deltas.computeIfPresent(e.getKey(), (k, x) -> x == d && x.sum.sum() == 0 ? null : x);
+				continue;
+			}
+			changes.add(Data.map()
+				.put("op", "add")
+				.put("u", d.user)
+				.put("k", d.key)
+				.put("v", sum)
+				.put("e", d.until));
+		}
+		return changes;
+	}
+
+	private static void queue(Peer peer, Batch batch)
+	{
+		// a peer being resynchronized gets the whole state instead
+		if( peer.resync ) return;
+		peer.backlog.add(batch);
+		peer.queued += batch.size;
+		if( peer.queued <= BACKLOG ) return;
+
+		Metrics.add(Globals.MONITOR_TYPE_STATE, "replication", "dropped", peer.queued);
+		Manager.of(Logger.class).warning(Replication.class, "Dropped {} state changes for {}, it will be resynchronized", peer.queued, peer.url);
+		peer.backlog.clear();
+		peer.queued = 0;
+		peer.resync = true;
+	}
+
+	// sends the backlog of a peer in order, returns false if the peer could not be reached
+	private static boolean send(Peer peer, long upto)
+	{
+		long now = System.currentTimeMillis();
+		if( now < peer.retry ) return false;
+
+		if( peer.resync )
+		{
+			// the copy covers every change recorded before it is taken
+			Data all = State.replica();
+			Data chunk = Data.list();
+			for( Data change : all )
+			{
+				chunk.add(change);
+				if( chunk.size() < CHUNK ) continue;
+				peer.backlog.add(new Batch(batches.incrementAndGet(), upto, chunk));
+				chunk = Data.list();
+			}
+			peer.backlog.add(new Batch(batches.incrementAndGet(), upto, chunk));
+			peer.queued = all.size();
+			peer.resync = false;
+		}
+
+		Batch batch;
+		while( (batch = peer.backlog.peek()) != null )
+		{
+			try
+			{
+				long time = System.currentTimeMillis();
+				Data payload = Data.map()
+					.put("node", NODE)
+					.put("batch", batch.id)
+					.put("time", time)
+					.put("changes", batch.changes);
+				Data headers = Data.map()
+					.put(HEADER, sign(NODE, batch.id, time, batch.changes))
+					.put("Content-Type", "application/json");
+				Http.post(peer.url + UniqornReplication.URL, payload, headers, "POST", 2000);
+				Metrics.add(Globals.MONITOR_TYPE_STATE, "replication", "sent", batch.size);
+			}
+			catch(Exception e)
+			{
+				// retry later, backing off up to 30s while the peer is unreachable
+				peer.backoff = Math.min(30_000, Math.max(100, peer.backoff * 2));
+				peer.retry = System.currentTimeMillis() + peer.backoff;
+				Metrics.add(Globals.MONITOR_TYPE_STATE, "replication", "failed", batch.size);
+				Manager.of(Logger.class).warning(Replication.class, "Could not replicate {} state changes to {}, {} pending: {}", batch.size, peer.url, peer.queued, e.getMessage());
+				return false;
+			}
+			peer.backlog.poll();
+			peer.queued -= batch.size;
+			peer.backoff = 0;
+			acknowledge(peer, batch.upto);
+		}
+		// nothing left to send, every change drained so far was received
+		acknowledge(peer, upto);
+		return true;
+	}
+
+	private static void acknowledge(Peer peer, long upto)
+	{
+		if( upto <= peer.acked ) return;
+		peer.acked = upto;
+		if( waiting.get() > 0 )
+			synchronized(acks) { acks.notifyAll(); }
+	}
+}
@@ -0,0 +1,201 @@
+package uniqorn.internal;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import aeonics.data.Data;
+
+/**
+ * Bounded response cache of an endpoint.
+ * <p>
+ * Entries expire after a fixed time-to-live. When the cache is full, the least recently used of a
+ * sample of entries is evicted, an approximation of a least recently used policy that keeps lookups
+ * free of any lock.
+ * <p>
+ * The cache keeps its own copy of a response, taken once when it is stored, and hands that same
+ * instance to every caller. It must be treated as immutable: a caller that needs to change it, such
+ * as adding headers, works on a {@link #copy(Data)}.
+ */
+public class ResponseCache
+{
+	// the number of entries compared to pick the one to evict
+	private static final int SAMPLE = 8;
+
+	/**
+	 * A cached response
+	 */
+	public static class Entry
+	{
+		private final Data response;
+		private final String etag;
+		private final String version;
+		private final long expires;
+		private volatile long used;
+		private Entry(Data response, String etag, String version, long expires)
+		{
+			this.response = response;
+			this.etag = etag;
+			this.version = version;
+			this.expires = expires;
+			this.used = System.nanoTime();
+		}
+
+		/**
+		 * The cached response, shared with the other callers
+		 * @return the response, that must not be changed
+		 */
+		public Data response() { return response; }
+
+		/**
+		 * The entity tag of the cached response
+		 * @return the entity tag or null if the response is not tagged
+		 */
+		public String etag() { return etag; }
+	}
+
+	private final long ttl;
+	private final boolean perUser;
+	private final int capacity;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicLong purged = new AtomicLong(System.nanoTime());
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Creates a new cache
+	 * @param ttl the time-to-live of the entries in milliseconds
+	 * @param maxEntries the maximum number of entries
+	 * @param perUser whether the responses are cached separately for each user
+	 */
+	public ResponseCache(long ttl, int maxEntries, boolean perUser)
+	{
+		this.ttl = Math.max(1, ttl) * 1_000_000L;
+		this.perUser = perUser;
+		this.capacity = Math.max(1, maxEntries);
+	}
+
+	/**
+	 * Whether the responses are cached separately for each user
+	 * @return true if the cache key includes the user
+	 */
+	public boolean perUser() { return perUser; }
+
+	/**
+	 * Returns the cached response for the specified key
+	 * @param key the cache key
+	 * @param version the current version tag of the call, or null if the endpoint has no version key
+	 * @return the cached entry or null if absent, expired or cached under another version
+	 */
+	public Entry get(String key, String version)
+	{
+		Entry e = entries.get(key);
+		long now = System.nanoTime();
+		if( e != null && (e.expires - now <= 0 || (version != null && !version.equals(e.version))) )
+		{
+			entries.remove(key, e);
+			e = null;
+		}
+		if( e == null )
+		{
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		e.used = now;
+		return e;
+	}
+
+	/**
+	 * Stores a response
+	 * @param key the cache key
+	 * @param response the response
+	 * @param etag the entity tag of the response, may be null
+	 * @param version the version tag the response was computed under, or null if the endpoint has no version key
+	 */
+	public void put(String key, Data response, String etag, String version)
+	{
+		Entry e = new Entry(copy(response), etag, version, System.nanoTime() + ttl);
+		if( entries.put(key, e) == null && entries.size() > capacity )
+		{
+			// the sample only sees part of the entries, drop all the expired ones at most once per time-to-live
+			long now = System.nanoTime();
+			long last = purged.get();
+			if( now - last > ttl && purged.compareAndSet(last, now) )
+				entries.values().removeIf(x -> x.expires - now <= 0);
+			while( entries.size() > capacity && evict() );
+		}
+	}
+
+	// removes the expired or least recently used entry of a sample
+	private boolean evict()
+	{
+		long now = System.nanoTime();
+		Map.Entry<String, Entry> victim = null;
+		Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator();
+		for( int n = 0; n < SAMPLE && i.hasNext(); n++ )
+		{
+			Map.Entry<String, Entry> candidate = i.next();
+			if( candidate.getValue().expires - now <= 0 ) { victim = candidate; break; }
+			if( victim == null || candidate.getValue().used - victim.getValue().used < 0 )
+				victim = candidate;
+		}
+		return victim != null && entries.remove(victim.getKey(), victim.getValue());
+	}
+
+	/**
+	 * Copies the maps and lists of a response, the values themselves are immutable and shared
+	 * @param data the response
+	 * @return the copy
+	 */
+	public static Data copy(Data data)
+	{
+		if( data == null ) return null;
+		if( data.isMap() )
+		{
+			Data copy = Data.map();
+			for( Map.Entry<String, Data> e : data.entrySet() )
+				copy.put(e.getKey(), copy(e.getValue()));
+			return copy;
+		}
+		if( data.isList() )
+		{
+			Data copy = Data.list();
+			for( Data d : data )
+				copy.add(copy(d));
+			return copy;
+		}
+		return data;
+	}
+
+	/**
+	 * Drops all entries
+	 */
+	public void clear()
+	{
+		entries.clear();
+	}
+
+	/**
+	 * Returns the number of entries, including expired ones not yet dropped
+	 * @return the number of entries
+	 */
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Returns the number of lookups that found a response
+	 * @return the hit count
+	 */
+	public long hits() { return hits.sum(); }
+
+	/**
+	 * Returns the number of lookups that did not find a response
+	 * @return the miss count
+	 */
+	public long misses() { return misses.sum(); }
+}
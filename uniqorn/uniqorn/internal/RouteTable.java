@@ -0,0 +1,300 @@
+package uniqorn.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import aeonics.data.Data;
+import aeonics.entity.Entity;
+import aeonics.entity.Registry;
+import aeonics.manager.Config;
+import aeonics.manager.Logger;
+import aeonics.manager.Manager;
+import aeonics.util.Tuples.Tuple;
+import uniqorn.Api;
+import uniqorn.Endpoint;
+import uniqorn.Workspace;
+
+/**
+ * Immutable snapshot of the uniqorn routes used to resolve a request to its endpoint.
+ * <p>
+ * Endpoints with a plain literal url and method are indexed by method and full path (workspace prefix
+ * included) so they resolve with a single hash lookup. Other endpoints are kept per workspace in
+ * registry order and matched one by one as before. The candidates of a literal path also include the
+ * other endpoints that match that path, in registry order, so a request resolves to the same endpoint
+ * as with a plain registry scan. The table is rebuilt lazily on the first lookup
+ * after {@link #invalidate()} and is published atomically, so lookups never lock.
+ * <p>
+ * The enabled flag of an endpoint is checked at lookup time, so enabling or disabling an endpoint
+ * takes effect immediately without a rebuild.
+ * <p>
+ * The table also holds the global url prefix of the endpoints, so chained calls resolve their
+ * target without reading the configuration, and the workspace of each endpoint api. The prefix
+ * is compared with the configuration at most once per second and a change invalidates the table.
+ */
+public class RouteTable
+{
+	/**
+	 * A routable endpoint and the workspace prefix it is published under
+	 */
+	public static class Route
+	{
+		private final Endpoint.Type endpoint;
+		private final Workspace.Type workspace;
+		private final String prefix;
+
+		private Route(Endpoint.Type endpoint, Workspace.Type workspace, String prefix)
+		{
+			this.endpoint = endpoint;
+			this.workspace = workspace;
+			this.prefix = prefix;
+		}
+
+		public Endpoint.Type endpoint() { return endpoint; }
+		public Workspace.Type workspace() { return workspace; }
+		public String prefix() { return prefix; }
+	}
+
+	private static class Group
+	{
+		private final String prefix;
+		private final String prefixSlash;
+		private final Route[] routes;
+
+		private Group(String prefix, Route[] routes)
+		{
+			this.prefix = prefix;
+			this.prefixSlash = prefix + "/";
+			this.routes = routes;
+		}
+	}
+
+	private static final AtomicLong version = new AtomicLong(0);
+	private static final AtomicReference<RouteTable> current = new AtomicReference<>(null);
+	private static volatile long checked = 0;
+
+	private final long builtVersion;
+	private final String prefix;
+	// api id -> workspace name
+	private final Map<String, String> workspaces;
+	// method -> full path -> candidate routes in registry order
+	private final Map<String, Map<String, Route[]>> literal;
+	// per workspace routes that need the endpoint matcher
+	private final Group[] dynamic;
+
+	private RouteTable(long builtVersion, String prefix, Map<String, String> workspaces, Map<String, Map<String, Route[]>> literal, Group[] dynamic)
+	{
+		this.builtVersion = builtVersion;
+		this.prefix = prefix;
+		this.workspaces = workspaces;
+		this.literal = literal;
+		this.dynamic = dynamic;
+	}
+
+	/**
+	 * Marks the current route table as stale. The next lookup rebuilds it.
+	 */
+	public static void invalidate()
+	{
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Returns the current route table, rebuilding it if it was invalidated
+	 * @return the current route table
+	 */
+	public static RouteTable get()
+	{
+		RouteTable table = current.get();
+		if( table != null && System.nanoTime() - checked > 1_000_000_000L )
+		{
+			// the global prefix is a configuration value, it has no change notification
+			checked = System.nanoTime();
+			if( !table.prefix.equals(globalPrefix()) ) invalidate();
+		}
+		if( table != null && table.builtVersion == version.get() ) return table;
+
+		synchronized(RouteTable.class)
+		{
+			table = current.get();
+			long v = version.get();
+			if( table != null && table.builtVersion == v ) return table;
+
+			// if an invalidation happens while building, the version will not match
+			// and the next lookup rebuilds again
+			table = build(v);
+			current.set(table);
+			return table;
+		}
+	}
+
+	/**
+	 * The global url prefix of the endpoints when the table was built
+	 * @return the prefix
+	 */
+	public String prefix() { return prefix; }
+
+	/**
+	 * Finds the workspace of an endpoint api
+	 * @param api the api source, the endpoint key of the state
+	 * @return the workspace name, or an empty string if the api is unknown
+	 */
+	public String workspace(String api)
+	{
+		String w = api == null ? null : workspaces.get(api);
+		return w == null ? "" : w;
+	}
+
+	/**
+	 * Finds the enabled endpoint that serves the specified request
+	 * @param method the http method
+	 * @param path the request path without the global prefix
+	 * @return the matching route or null if none
+	 */
+	public Route lookup(String method, String path)
+	{
+		if( method == null || path == null ) return null;
+
+		Map<String, Route[]> byPath = literal.get(upper(method));
+		if( byPath != null )
+		{
+			Route[] candidates = byPath.get(path);
+			if( candidates != null )
+			{
+				for( Route r : candidates )
+					if( r.endpoint.matches(method, path.substring(r.prefix.length())) )
+						return r;
+			}
+		}
+
+		for( Group g : dynamic )
+		{
+			if( !path.startsWith(g.prefixSlash) ) continue;
+			String relative = path.substring(g.prefix.length());
+			for( Route r : g.routes )
+				if( r.endpoint.matches(method, relative) )
+					return r;
+		}
+
+		return null;
+	}
+
+	private static RouteTable build(long v)
+	{
+		Map<String, Map<String, List<Route>>> literal = new HashMap<>();
+		List<Group> dynamic = new ArrayList<>();
+		// every non literal route in registry order
+		List<Route> ordered = new ArrayList<>();
+		Map<String, String> workspaces = new HashMap<>();
+		int count = 0;
+
+		for( Workspace.Type w : Registry.of(Workspace.class) )
+		{
+			String prefix = w.valueOf("prefix").asString();
+			List<Route> routes = new ArrayList<>();
+			for( Tuple<Entity, Data> t : w.relations("endpoints") )
+			{
+				if( t == null || t.a == null ) continue;
+				Endpoint.Type e = t.a.cast();
+				Api a = e.api();
+				if( a == null ) continue;
+				aeonics.http.Endpoint.Rest.Type r = a.api();
+				if( r == null ) continue;
+
+				workspaces.put(a.source(), w.name());
+				Route route = new Route(e, w, prefix);
+				count++;
+				if( isLiteralMethod(r.method()) && isLiteralPath(r.url()) )
+				{
+					// requests only reach a workspace under its prefix followed by a slash
+					String full = prefix + (r.url().startsWith("/") ? r.url() : "/" + r.url());
+					List<Route> candidates = literal.computeIfAbsent(upper(r.method()), k -> new HashMap<>())
+						.computeIfAbsent(full, k -> new ArrayList<>());
+					// the routes registered earlier that also match this path keep precedence
+					for( Route earlier : ordered )
+						if( !candidates.contains(earlier) && shadows(earlier, upper(r.method()), full) )
+							candidates.add(earlier);
+					candidates.add(route);
+				}
+				else
+				{
+					routes.add(route);
+					ordered.add(route);
+				}
+			}
+			if( !routes.isEmpty() )
+				dynamic.add(new Group(prefix, routes.toArray(new Route[0])));
+		}
+
+		Map<String, Map<String, Route[]>> frozen = new HashMap<>();
+		for( Map.Entry<String, Map<String, List<Route>>> m : literal.entrySet() )
+		{
+			Map<String, Route[]> byPath = new HashMap<>();
+			for( Map.Entry<String, List<Route>> p : m.getValue().entrySet() )
+				byPath.put(p.getKey(), p.getValue().toArray(new Route[0]));
+			frozen.put(m.getKey(), byPath);
+		}
+
+		Manager.of(Logger.class).finest(RouteTable.class, "Route table rebuilt with {} routes", count);
+		checked = System.nanoTime();
+		return new RouteTable(v, globalPrefix(), workspaces, frozen, dynamic.toArray(new Group[0]));
+	}
+
+	private static String globalPrefix()
+	{
+		String prefix = Manager.of(Config.class).get(Api.class, "prefix").asString();
+		return prefix == null ? "" : prefix;
+	}
+
+	// whether a non literal route matches a literal path, regardless of its enabled flag
+	private static boolean shadows(Route route, String method, String path)
+	{
+		if( !path.startsWith(route.prefix + "/") ) return false;
+		aeonics.http.Endpoint.Rest.Type r = route.endpoint.api() == null ? null : route.endpoint.api().api();
+		try
+		{
+			return r != null && r.matchesMethod(method) && r.matchesPath(path.substring(route.prefix.length()));
+		}
+		catch(Exception e)
+		{
+			return false;
+		}
+	}
+
+	private static String upper(String method)
+	{
+		for( int i = 0; i < method.length(); i++ )
+		{
+			char c = method.charAt(i);
+			if( c >= 'a' && c <= 'z' ) return method.toUpperCase();
+		}
+		return method;
+	}
+
+	private static boolean isLiteralMethod(String method)
+	{
+		if( method == null || method.isEmpty() ) return false;
+		for( int i = 0; i < method.length(); i++ )
+		{
+			char c = method.charAt(i);
+			if( !((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) ) return false;
+		}
+		return true;
+	}
+
+	private static boolean isLiteralPath(String url)
+	{
+		// be conservative: anything that could be a placeholder or a pattern goes through the matcher
+		if( url == null || url.isEmpty() ) return false;
+		for( int i = 0; i < url.length(); i++ )
+		{
+			char c = url.charAt(i);
+			if( !((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+				|| c == '/' || c == '-' || c == '_' || c == '.' || c == '~') ) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,146 @@
+package uniqorn.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import aeonics.data.Data;
+import aeonics.entity.security.User;
+import aeonics.http.HttpException;
+import aeonics.util.Functions.Supplier;
+
+/**
+ * Coalesces identical concurrent calls of an endpoint.
+ * <p>
+ * The first call for a key runs, and the calls with the same key that arrive while it is running
+ * wait for it and receive the same result or error instead of running again. Each waiting call gets
+ * its own copy of the response.
+ * <p>
+ * A waiting call gives up at the deadline of its request with HTTP 504. Without a deadline, it waits
+ * at most as long as it would have waited for a concurrency slot, then fails with HTTP 503 rather than
+ * running the call again next to the slow one.
+ * <p>
+ * Calls are identical when their declared parameter values are equal, whatever the order of the keys
+ * of the maps they hold.
+ */
+public class SingleFlight
+{
+	private final boolean perUser;
+	private final ConcurrentHashMap<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a new coalescing group
+	 * @param perUser whether only the calls of the same user are coalesced
+	 */
+	public SingleFlight(boolean perUser)
+	{
+		this.perUser = perUser;
+	}
+
+	/**
+	 * Builds the key that identifies identical calls
+	 * @param values the declared parameter values of the call
+	 * @param user the calling user
+	 * @return the call key
+	 */
+	public String key(Data values, User.Type user)
+	{
+		StringBuilder key = new StringBuilder();
+		if( perUser && user != null ) key.append(user.id());
+		key.append('\n');
+		canonical(key, values);
+		return key.toString();
+	}
+
+	// a serialized form where maps list their keys in order and each scalar is tagged with its type
+	private static void canonical(StringBuilder out, Data data)
+	{
+		if( data == null || data.isNull() ) { out.append('~'); return; }
+		if( data.isMap() )
+		{
+			List<String> keys = new ArrayList<>(data.keySet());
+			Collections.sort(keys);
+			out.append('{');
+			for( String k : keys )
+			{
+				out.append(k.length()).append(':').append(k);
+				canonical(out, data.get(k));
+			}
+			out.append('}');
+		}
+		else if( data.isList() )
+		{
+			out.append('[');
+			for( Data d : data ) canonical(out, d);
+			out.append(']');
+		}
+		else
+		{
+			String s = data.asString();
+			out.append(data.isNumber() ? 'n' : data.isBool() ? 'b' : 's').append(s.length()).append(':').append(s);
+		}
+	}
+
+	/**
+	 * Runs the call unless an identical one is already running, in which case its outcome is shared
+	 * @param key the call key
+	 * @param maxWaitMillis the longest to wait for the running call when the request has no deadline, or a negative value to wait indefinitely
+	 * @param call the call to run
+	 * @return the call result
+	 * @throws Exception the call error
+	 */
+	public Object run(String key, long maxWaitMillis, Supplier<Object> call) throws Exception
+	{
+		CompletableFuture<Object> mine = new CompletableFuture<>();
+		CompletableFuture<Object> running = calls.putIfAbsent(key, mine);
+		if( running != null )
+		{
+			long left = Deadline.remaining();
+			long wait = left != Long.MAX_VALUE ? left : maxWaitMillis;
+			try
+			{
+				Object result = wait < 0 ? running.get() : running.get(wait, TimeUnit.MILLISECONDS);
+				return result instanceof Data ? ResponseCache.copy((Data) result) : result;
+			}
+			catch(TimeoutException e)
+			{
+				if( left != Long.MAX_VALUE ) throw Deadline.expired();
+				// the running call is slow, running it again would only add to the load
+				throw new HttpException(503, "An identical call is still running");
+			}
+			catch(ExecutionException e)
+			{
+				if( e.getCause() instanceof Exception ) throw (Exception) e.getCause();
+				if( e.getCause() instanceof Error ) throw (Error) e.getCause();
+				throw e;
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new HttpException(503, "The request was interrupted while waiting for an identical call");
+			}
+		}
+
+		try
+		{
+			Object result = call.get();
+			// the waiting calls copy a snapshot, so the caller may still change its own response
+			mine.complete(result instanceof Data ? ResponseCache.copy((Data) result) : result);
+			return result;
+		}
+		catch(Throwable t)
+		{
+			mine.completeExceptionally(t);
+			throw t;
+		}
+		finally
+		{
+			calls.remove(key, mine);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package uniqorn.internal;
+
+import java.util.Base64;
+
+import aeonics.data.Data;
+
+/**
+ * Converts state values to and from their snapshot form.
+ * <p>
+ * Only the values that can be restored as the very same type are kept: strings, boxed primitive
+ * numbers, booleans, byte arrays and {@link Data}. Numbers are written as text so that large longs
+ * survive the JSON round trip. Any other value is not serializable and lives in memory only.
+ */
+public class StateCodec
+{
+	/**
+	 * Converts a value to its snapshot form
+	 * @param value the value
+	 * @return the snapshot form, or null if the value is not serializable
+	 */
+	public static Data encode(Object value)
+	{
+		String type;
+		Object v = value;
+		if( value instanceof String ) type = "s";
+		else if( value instanceof Boolean ) type = "b";
+		else if( value instanceof Long ) type = "l";
+		else if( value instanceof Integer ) type = "i";
+		else if( value instanceof Double ) type = "d";
+		else if( value instanceof Float ) type = "f";
+		else if( value instanceof Short ) type = "h";
+		else if( value instanceof Byte ) type = "y";
+		else if( value instanceof Data ) type = "j";
+		else if( value instanceof byte[] ) type = "x";
+		else return null;
+
+		if( value instanceof Number || value instanceof Boolean ) v = value.toString();
+		else if( value instanceof byte[] ) v = Base64.getEncoder().encodeToString((byte[]) value);
+		return Data.map().put("t", type).put("v", v);
+	}
+
+	/**
+	 * Restores a value from its snapshot form
+	 * @param data the snapshot form
+	 * @return the value, or null if the form is not recognized
+	 */
+	public static Object decode(Data data)
+	{
+		String type = data.asString("t");
+		if( type == null ) return null;
+		switch( type )
+		{
+			case "s": return data.asString("v");
+			case "b": return Boolean.valueOf(data.asString("v"));
+			case "l": return Long.valueOf(data.asString("v"));
+			case "i": return Integer.valueOf(data.asString("v"));
+			case "d": return Double.valueOf(data.asString("v"));
+			case "f": return Float.valueOf(data.asString("v"));
+			case "h": return Short.valueOf(data.asString("v"));
+			case "y": return Byte.valueOf(data.asString("v"));
+			case "j": return data.get("v");
+			case "x": return Base64.getDecoder().decode(data.asString("v"));
+			default: return null;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package uniqorn.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import aeonics.http.HttpException;
+import aeonics.manager.Logger;
+import aeonics.manager.Manager;
+
+/**
+ * Runs concurrent tasks, such as parallel chained calls, on virtual threads when the runtime supports
+ * them, or else on a bounded pool of platform threads. When that pool is saturated the task is not run
+ * and its future fails with HTTP 503, so the submitting thread never runs it inline past its deadline.
+ * <p>
+ * Virtual threads are looked up by reflection so this class also loads on runtimes older than Java 21.
+ */
+public class Threads
+{
+	private static final ExecutorService VIRTUAL;
+	private static final ExecutorService PLATFORM = new ThreadPoolExecutor(0, 256, 60, TimeUnit.SECONDS,
+		new SynchronousQueue<>(), r ->
+		{
+			Thread t = new Thread(r, "uniqorn-task");
+			t.setDaemon(true);
+			return t;
+		}, new ThreadPoolExecutor.AbortPolicy());
+
+	static
+	{
+		ExecutorService executor = null;
+		try
+		{
+			executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(Exception e)
+		{
+			executor = null;
+			Manager.of(Logger.class).config(Threads.class, "Virtual threads are not available on this runtime, concurrent tasks run on platform threads");
+		}
+		VIRTUAL = executor;
+	}
+
+	/**
+	 * Whether the runtime supports virtual threads
+	 * @return true if tasks can run on virtual threads
+	 */
+	public static boolean available()
+	{
+		return VIRTUAL != null;
+	}
+
+	/**
+	 * Starts a task concurrently with the calling thread, on a virtual thread if available.
+	 * <p>
+	 * Thread locals are not inherited, the task must set the ones it needs.
+	 * @param <T> the result type
+	 * @param task the task to run
+	 * @return the future result of the task, failed with HTTP 503 if the platform pool is saturated
+	 */
+	public static <T> Future<T> submit(Callable<T> task)
+	{
+		try
+		{
+			return (VIRTUAL != null ? VIRTUAL : PLATFORM).submit(task);
+		}
+		catch(RejectedExecutionException e)
+		{
+			return CompletableFuture.failedFuture(new HttpException(503, "The server is busy, please retry later"));
+		}
+	}
+}
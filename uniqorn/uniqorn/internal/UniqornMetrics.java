@@ -0,0 +1,258 @@
+package uniqorn.internal;
+
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import aeonics.data.Data;
+import aeonics.entity.Message;
+import aeonics.entity.Registry;
+import aeonics.entity.security.User;
+import aeonics.http.HttpException;
+import uniqorn.Batch;
+import uniqorn.Endpoint;
+import uniqorn.State;
+import uniqorn.Workspace;
+
+/**
+ * Admin endpoint that exports the uniqorn latency percentiles.
+ * <p>
+ * <code>GET /api/admin/uniqorn/metrics</code> returns the p50, p95 and p99 latencies of every endpoint
+ * and workspace over the last 1, 5 and 15 minutes as JSON, or in the OpenMetrics text format when
+ * called with <code>format=openmetrics</code>. The JSON output also reports the response cache hits
+ * and misses, the admission queue and the local state usage of each endpoint, the global state usage,
+ * the background work queue of each workspace, and the contention of the atomic block locks.
+ * Only managers may call it.
+ */
+public class UniqornMetrics extends aeonics.http.Endpoint
+{
+	public static final String URL = "/api/admin/uniqorn/metrics";
+
+	private static final int[] WINDOWS = { 1, 5, 15 };
+	private static final double[] PERCENTILES = { 50, 95, 99 };
+	// OpenMetrics histogram bounds in seconds
+	private static final double[] BOUNDS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+	public static class Type extends aeonics.http.Endpoint.Type
+	{
+		@Override
+		public boolean internal() { return true; }
+
+		@Override
+		public SnapshotMode snapshotMode() { return SnapshotMode.NONE; }
+
+		@Override
+		public boolean matchesMethod(String method) { return "GET".equalsIgnoreCase(method); }
+
+		@Override
+		public boolean matchesPath(String url) { return URL.equals(url); }
+
+		@Override
+		public Data process(Message request) throws Exception
+		{
+			User.Type user = Objects.requireNonNullElse(Registry.of(User.class).get(request.user()), User.ANONYMOUS);
+			if( user != User.SYSTEM && !user.hasRole(Globals.ROLE_MANAGER) )
+				throw new HttpException(403, "Access denied");
+
+			if( "openmetrics".equalsIgnoreCase(request.content().get("get").asString("format")) )
+				return Data.map()
+					.put("isHttpResponse", true)
+					.put("code", 200)
+					.put("headers", Data.map().put("Content-Type", "application/openmetrics-text; version=1.0.0; charset=utf-8"))
+					.put("body", openmetrics());
+
+			return json();
+		}
+	}
+
+	private static Data json()
+	{
+		Data endpoints = Data.list();
+		for( Endpoint.Type e : Registry.of(Endpoint.class) )
+		{
+			Workspace.Type w = e.workspace();
+			ResponseCache cache = e.api() == null ? null : e.api().cache();
+			Admission admission = e.api() == null ? null : e.api().admission();
+			endpoints.add(Data.map()
+				.put("id", e.id())
+				.put("endpoint", e.fullPath())
+				.put("workspace", w == null ? null : w.name())
+				.put("latency", json(Metrics.endpoint(e.id())))
+				.put("cache", cache == null ? null : Data.map()
+					.put("hits", cache.hits())
+					.put("misses", cache.misses())
+					.put("size", cache.size()))
+				.put("admission", admission == null ? null : Data.map()
+					.put("limit", admission.limit())
+					.put("adaptive", admission.adaptive() != null)
+					.put("active", admission.active())
+					.put("waiting", admission.waiting())
+					.put("queued", admission.queued())
+					.put("wait", admission.waited() / 1_000_000d)
+					.put("rejected", admission.rejected()))
+				.put("state", e.api() == null ? null : State.stats(e.api().source())));
+		}
+
+		Data workspaces = Data.list();
+		for( Workspace.Type w : Registry.of(Workspace.class) )
+			workspaces.add(Data.map()
+				.put("workspace", w.name())
+				.put("latency", json(Metrics.workspace(w.name())))
+				.put("defer", WorkQueue.get(w.name()) == null ? null : WorkQueue.get(w.name()).stats())
+				.put("batch", Batch.stats(w.name())));
+
+		return Data.map().put("endpoints", endpoints).put("workspaces", workspaces).put("state", State.stats()).put("locks", Locks.stats());
+	}
+
+	private static Data json(Latency latency)
+	{
+		Data windows = Data.map();
+		for( int minutes : WINDOWS )
+		{
+			long[] buckets = latency == null ? new long[Histogram.BUCKETS] : latency.window(minutes);
+			Data window = Data.map().put("count", Histogram.count(buckets));
+			for( double p : PERCENTILES )
+				window.put("p" + (int) p, Histogram.percentile(buckets, p) / 1_000_000d);
+			windows.put(minutes + "m", window);
+		}
+		return windows;
+	}
+
+	private static String openmetrics()
+	{
+		StringBuilder out = new StringBuilder();
+		out.append("# TYPE uniqorn_request_duration_seconds histogram\n");
+		out.append("# UNIT uniqorn_request_duration_seconds seconds\n");
+		out.append("# HELP uniqorn_request_duration_seconds Processing time of the calls routed to an endpoint.\n");
+		for( Endpoint.Type e : Registry.of(Endpoint.class) )
+		{
+			Latency latency = Metrics.endpoint(e.id());
+			if( latency == null ) continue;
+			Workspace.Type w = e.workspace();
+			String labels = "endpoint=\"" + escape(e.fullPath()) + "\",workspace=\"" + escape(w == null ? "" : w.name()) + "\"";
+			long[] buckets = latency.total();
+			long cumulative = 0;
+			int index = 0;
+			for( double bound : BOUNDS )
+			{
+				long limit = (long) (bound * 1_000_000_000d);
+				while( index < buckets.length && Histogram.upper(index) <= limit )
+					cumulative += buckets[index++];
+				out.append("uniqorn_request_duration_seconds_bucket{").append(labels).append(",le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+			}
+			long count = Histogram.count(buckets);
+			out.append("uniqorn_request_duration_seconds_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+			out.append("uniqorn_request_duration_seconds_count{").append(labels).append("} ").append(count).append('\n');
+			out.append("uniqorn_request_duration_seconds_sum{").append(labels).append("} ").append(latency.sum() / 1_000_000_000d).append('\n');
+		}
+
+		out.append("# TYPE uniqorn_request_duration_window_seconds gauge\n");
+		out.append("# UNIT uniqorn_request_duration_window_seconds seconds\n");
+		out.append("# HELP uniqorn_request_duration_window_seconds Latency percentiles over a rolling window.\n");
+		for( Endpoint.Type e : Registry.of(Endpoint.class) )
+		{
+			Latency latency = Metrics.endpoint(e.id());
+			if( latency == null ) continue;
+			Workspace.Type w = e.workspace();
+			windows(out, "endpoint=\"" + escape(e.fullPath()) + "\",workspace=\"" + escape(w == null ? "" : w.name()) + "\"", latency);
+		}
+		for( Workspace.Type w : Registry.of(Workspace.class) )
+		{
+			Latency latency = Metrics.workspace(w.name());
+			if( latency == null ) continue;
+			windows(out, "workspace=\"" + escape(w.name()) + "\"", latency);
+		}
+
+		out.append("# TYPE uniqorn_concurrency_limit gauge\n");
+		out.append("# HELP uniqorn_concurrency_limit Number of calls an endpoint serves at once, adjusted continuously for adaptive endpoints.\n");
+		for( Endpoint.Type e : Registry.of(Endpoint.class) )
+		{
+			Admission admission = e.api() == null ? null : e.api().admission();
+			if( admission == null ) continue;
+			Workspace.Type w = e.workspace();
+			out.append("uniqorn_concurrency_limit{endpoint=\"").append(escape(e.fullPath())).append("\",workspace=\"").append(escape(w == null ? "" : w.name()))
+				.append("\"} ").append(admission.limit()).append('\n');
+		}
+
+		out.append("# TYPE uniqorn_defer_depth gauge\n");
+		out.append("# HELP uniqorn_defer_depth Number of background tasks waiting for a worker, per workspace.\n");
+		for( Workspace.Type w : Registry.of(Workspace.class) )
+		{
+			WorkQueue queue = WorkQueue.get(w.name());
+			if( queue != null ) state(out, "uniqorn_defer_depth", "workspace=\"" + escape(w.name()) + "\"", queue.stats().asLong("depth"));
+		}
+
+		// one pass over the endpoints fills the three families, which are written one after the other
+		StringBuilder entries = new StringBuilder();
+		StringBuilder bytes = new StringBuilder();
+		StringBuilder operations = new StringBuilder();
+		for( Endpoint.Type e : Registry.of(Endpoint.class) )
+		{
+			Data stats = e.api() == null ? null : State.stats(e.api().source());
+			if( stats == null ) continue;
+			String labels = "endpoint=\"" + escape(e.fullPath()) + "\"";
+			state(entries, "uniqorn_state_entries", labels, stats.asLong("entries"));
+			state(bytes, "uniqorn_state_bytes", labels, stats.asLong("bytes"));
+			operations(operations, labels, stats);
+		}
+		Data global = State.stats().get("global");
+		state(entries, "uniqorn_state_entries", "endpoint=\"global\"", global.asLong("entries"));
+		state(bytes, "uniqorn_state_bytes", "endpoint=\"global\"", global.asLong("bytes"));
+		operations(operations, "endpoint=\"global\"", global);
+
+		out.append("# TYPE uniqorn_state_entries gauge\n");
+		out.append("# HELP uniqorn_state_entries Number of state entries, per endpoint and for the global state.\n");
+		out.append(entries);
+
+		out.append("# TYPE uniqorn_state_bytes gauge\n");
+		out.append("# UNIT uniqorn_state_bytes bytes\n");
+		out.append("# HELP uniqorn_state_bytes Estimated size of the state, per endpoint and for the global state.\n");
+		out.append(bytes);
+
+		out.append("# TYPE uniqorn_state_operations counter\n");
+		out.append("# HELP uniqorn_state_operations State hits, misses, writes, expirations and evictions, per endpoint and for the global state.\n");
+		out.append(operations);
+
+		out.append("# EOF\n");
+		return out.toString();
+	}
+
+	private static void state(StringBuilder out, String metric, String labels, long value)
+	{
+		out.append(metric).append('{').append(labels).append("} ").append(value).append('\n');
+	}
+
+	private static void operations(StringBuilder out, String labels, Data stats)
+	{
+		for( String op : new String[] { "hits", "misses", "puts", "expiries", "evictions" } )
+			state(out, "uniqorn_state_operations_total", labels + ",operation=\"" + op + "\"", stats.asLong(op));
+	}
+
+	private static void windows(StringBuilder out, String labels, Latency latency)
+	{
+		for( int minutes : WINDOWS )
+		{
+			long[] buckets = latency.window(minutes);
+			for( double p : PERCENTILES )
+				out.append("uniqorn_request_duration_window_seconds{").append(labels)
+					.append(",window=\"").append(minutes).append("m\",quantile=\"").append(p / 100d).append("\"} ")
+					.append(Histogram.percentile(buckets, p) / 1_000_000_000d).append('\n');
+		}
+	}
+
+	private static String escape(String value)
+	{
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	protected Class<? extends UniqornMetrics.Type> defaultTarget() { return UniqornMetrics.Type.class; }
+	protected Supplier<? extends UniqornMetrics.Type> defaultCreator() { return UniqornMetrics.Type::new; }
+
+	@Override
+	public aeonics.http.Endpoint.Template template()
+	{
+		return super.template()
+			.summary("Uniqorn metrics")
+			.description("This endpoint exports the latency percentiles of the uniqorn endpoints and workspaces.")
+			;
+	}
+}
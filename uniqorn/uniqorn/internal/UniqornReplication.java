@@ -0,0 +1,118 @@
+package uniqorn.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import aeonics.data.Data;
+import aeonics.entity.Message;
+import aeonics.http.HttpException;
+import aeonics.util.Json;
+import uniqorn.State;
+
+/**
+ * Admin endpoint that receives the global state changes of the peer instances.
+ * <p>
+ * <code>POST /api/admin/uniqorn/state</code> applies the batches of changes sent by {@link Replication}.
+ * A batch must carry in the {@value Replication#HEADER} header its signature by the shared
+ * <code>state.replication.secret</code>, and must have been sent recently; the endpoint is disabled when
+ * no secret is configured. The batches of each instance are applied in order and once: a batch sent
+ * again because its acknowledgement was lost, or replayed, is acknowledged without being applied.
+ */
+public class UniqornReplication extends aeonics.http.Endpoint
+{
+	public static final String URL = "/api/admin/uniqorn/state";
+	
+	// the last batch applied from each instance, and when
+	private static class Inbound
+	{
+		private long batch = 0;
+		private volatile long seen = System.currentTimeMillis();
+	}
+	private static final ConcurrentHashMap<String, Inbound> inbound = new ConcurrentHashMap<>();
+	
+	private static Inbound inbound(String node)
+	{
+		// instances get a new id when they restart, forget those that went silent
+		if( inbound.size() > 64 )
+		{
+			long stale = System.currentTimeMillis() - 2 * Replication.SKEW;
+			inbound.values().removeIf(i -> i.seen < stale);
+		}
+		Inbound in = inbound.computeIfAbsent(node, n -> new Inbound());
+		in.seen = System.currentTimeMillis();
+		return in;
+	}
+
+	public static class Type extends aeonics.http.Endpoint.Type
+	{
+		@Override
+		public boolean internal() { return true; }
+
+		@Override
+		public SnapshotMode snapshotMode() { return SnapshotMode.NONE; }
+
+		@Override
+		public boolean matchesMethod(String method) { return "POST".equalsIgnoreCase(method); }
+
+		@Override
+		public boolean matchesPath(String url) { return URL.equals(url); }
+
+		@Override
+		public Data process(Message request) throws Exception
+		{
+			Data payload = request.content().get("post");
+			if( !payload.isMap() || !payload.containsKey("changes") )
+				payload = Json.decode(request.content().asString("body"));
+			if( payload == null || !payload.isMap() || !payload.get("changes").isString() || payload.isEmpty("node") )
+				throw new HttpException(400, "Invalid replication payload");
+
+			String node = payload.asString("node");
+			long batch = payload.asLong("batch");
+			long time = payload.asLong("time");
+			String changes = payload.asString("changes");
+			String expected = Replication.sign(node, batch, time, changes);
+			String presented = ETags.header(request.content().get("headers"), Replication.HEADER);
+			if( expected == null || presented == null
+				|| !MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), presented.getBytes(StandardCharsets.UTF_8)) )
+				throw new HttpException(403, "Access denied");
+			if( Math.abs(System.currentTimeMillis() - time) > Replication.SKEW )
+				throw new HttpException(403, "Expired replication batch");
+
+			// an instance listed among its own peers
+			if( Replication.NODE.equals(node) )
+				return Data.map().put("applied", 0);
+
+			Data list = Json.decode(changes);
+			if( list == null || !list.isList() )
+				throw new HttpException(400, "Invalid replication payload");
+
+			Inbound in = inbound(node);
+			int applied = 0;
+			synchronized(in)
+			{
+				if( batch <= in.batch )
+					return Data.map().put("applied", 0).put("duplicate", true);
+				for( Data change : list )
+					if( State.replicated(change, node) )
+						applied++;
+				in.batch = batch;
+			}
+			Metrics.add(Globals.MONITOR_TYPE_STATE, "replication", "received", applied);
+			return Data.map().put("applied", applied);
+		}
+	}
+
+	protected Class<? extends UniqornReplication.Type> defaultTarget() { return UniqornReplication.Type.class; }
+	protected Supplier<? extends UniqornReplication.Type> defaultCreator() { return UniqornReplication.Type::new; }
+
+	@Override
+	public aeonics.http.Endpoint.Template template()
+	{
+		return super.template()
+			.summary("Uniqorn state replication")
+			.description("This endpoint receives the global state changes of the peer uniqorn instances.")
+			;
+	}
+}
@@ -0,0 +1,83 @@
+package uniqorn.internal;
+
+import java.util.Collection;
+import java.util.Map;
+
+import aeonics.data.Data;
+
+/**
+ * Estimates the memory held by state values.
+ * <p>
+ * The estimate is meant to bound the memory use, not to measure it exactly: strings and arrays
+ * are counted by their length and other objects by a fixed size. {@link Data} is walked, but only
+ * its first elements are weighed at each level and the others are assumed alike, so the cost of an
+ * estimate does not grow with the value.
+ * <p>
+ * Values are weighed when they are written. A value that is changed in place without being written
+ * again keeps its previous weight until its next write.
+ */
+public class Weigher
+{
+	/**
+	 * The estimated overhead of a stored entry, besides its key and value
+	 */
+	public static final long ENTRY = 96;
+	
+	// the elements weighed at each level of a Data, and the levels walked
+	private static final int SAMPLES = 8;
+	private static final int DEPTH = 4;
+
+	/**
+	 * Estimates the size of a value
+	 * @param value the value
+	 * @return the estimated size in bytes
+	 */
+	public static long weigh(Object value)
+	{
+		if( value == null ) return 0;
+		if( value instanceof String ) return 40 + 2L * ((String) value).length();
+		if( value instanceof byte[] ) return 16 + ((byte[]) value).length;
+		if( value instanceof char[] ) return 16 + 2L * ((char[]) value).length;
+		if( value instanceof long[] ) return 16 + 8L * ((long[]) value).length;
+		if( value instanceof int[] ) return 16 + 4L * ((int[]) value).length;
+		if( value instanceof Number || value instanceof Boolean ) return 16;
+		if( value instanceof Data ) return weigh((Data) value, DEPTH);
+		if( value instanceof Collection ) return 64 + 32L * ((Collection<?>) value).size();
+		if( value instanceof Map ) return 64 + 64L * ((Map<?, ?>) value).size();
+		return 64;
+	}
+	
+	private static long weigh(Data data, int depth)
+	{
+		if( data == null || data.isNull() ) return 16;
+		if( data.isString() ) return 40 + 2L * data.asString().length();
+		if( data.isNumber() || data.isBool() ) return 24;
+		if( !data.isMap() && !data.isList() ) return 64;
+		
+		int size = data.size();
+		if( size == 0 ) return 64;
+		if( depth <= 0 ) return 64 + 64L * size;
+		
+		long sampled = 0;
+		int n = 0;
+		if( data.isMap() )
+		{
+			for( Map.Entry<String, Data> e : data.entrySet() )
+			{
+				if( n == SAMPLES ) break;
+				sampled += 32 + weigh(e.getKey()) + weigh(e.getValue(), depth - 1);
+				n++;
+			}
+		}
+		else
+		{
+			for( Data e : data )
+			{
+				if( n == SAMPLES ) break;
+				sampled += 8 + weigh(e, depth - 1);
+				n++;
+			}
+		}
+		return 64 + (n == 0 ? 0 : sampled * size / n);
+	}
+}
@@ -0,0 +1,231 @@
+package uniqorn.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import aeonics.data.Data;
+import aeonics.http.HttpException;
+import aeonics.manager.Config;
+import aeonics.manager.Manager;
+import uniqorn.Api;
+
+/**
+ * The background work queue of a workspace, behind <code>Api.defer</code>.
+ * <p>
+ * Each workspace has its own bounded queue and workers, so a workspace that defers a lot of work
+ * neither delays the background work of the others nor takes the request threads. The number of
+ * workers, the capacity and the overflow policy come from the <code>defer.*</code> configuration:
+ * when the queue is full, a task is either rejected with HTTP 503 or run by the submitting thread.
+ * <p>
+ * Tasks have a priority lane. A task is served before the tasks of a lower lane submitted less than
+ * one second earlier per lane of difference, so higher lanes go first under load while the lower
+ * ones are delayed but never starved.
+ */
+public class WorkQueue
+{
+	/**
+	 * The number of priority lanes, lane 0 being the most urgent
+	 */
+	public static final int LANES = 3;
+
+	// the head start of a task over the tasks of the next lane
+	private static final long LANE_DELAY = 1_000_000_000L;
+
+	private static final ConcurrentHashMap<String, WorkQueue> queues = new ConcurrentHashMap<>();
+
+	private class Task<T> implements Runnable, Comparable<Task<?>>
+	{
+		private final long rank;
+		private final long sequence;
+		private final long enqueued;
+		private final Callable<T> operation;
+		private final CompletableFuture<T> future;
+
+		private Task(int lane, Callable<T> operation, CompletableFuture<T> future)
+		{
+			this.enqueued = System.nanoTime();
+			this.rank = enqueued + lane * LANE_DELAY;
+			this.sequence = sequences.incrementAndGet();
+			this.operation = operation;
+			this.future = future;
+		}
+
+		public int compareTo(Task<?> other)
+		{
+			// nanoTime values are only comparable through their difference
+			long d = rank - other.rank;
+			if( d != 0 ) return d < 0 ? -1 : 1;
+			return Long.compare(sequence, other.sequence);
+		}
+
+		public void run()
+		{
+			depth.decrementAndGet();
+			long start = System.nanoTime();
+			Metrics.add(Globals.MONITOR_TYPE_DEFER, name, "wait", start - enqueued);
+			execute(operation, future);
+			Metrics.add(Globals.MONITOR_TYPE_DEFER, name, "run", System.nanoTime() - start);
+		}
+	}
+
+	private final String name;
+	private final ThreadPoolExecutor pool;
+	private final AtomicInteger depth = new AtomicInteger(0);
+	private final AtomicLong sequences = new AtomicLong(0);
+	private final AtomicInteger threads = new AtomicInteger(0);
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private volatile int capacity = 10_000;
+	private volatile boolean callerRuns = false;
+	private volatile long configured = 0;
+
+	private WorkQueue(String name)
+	{
+		this.name = name;
+		this.pool = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), r ->
+		{
+			Thread t = new Thread(r, "uniqorn-defer-" + (name.isEmpty() ? "default" : name) + "-" + threads.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		this.pool.allowCoreThreadTimeOut(true);
+		configure();
+	}
+
+	/**
+	 * Returns the work queue of a workspace, creating it if needed
+	 * @param workspace the workspace name, or an empty string for the work deferred outside of any workspace
+	 * @return the work queue
+	 */
+	public static WorkQueue of(String workspace)
+	{
+		String key = workspace == null ? "" : workspace;
+		WorkQueue q = queues.get(key);
+		if( q == null ) q = queues.computeIfAbsent(key, WorkQueue::new);
+		return q;
+	}
+
+	/**
+	 * Returns the work queue of a workspace if it exists
+	 * @param workspace the workspace name
+	 * @return the work queue or null if the workspace never deferred work
+	 */
+	public static WorkQueue get(String workspace)
+	{
+		return workspace == null ? null : queues.get(workspace);
+	}
+
+	/**
+	 * Stops accepting work for a workspace, the queued tasks still run
+	 * @param workspace the workspace name
+	 */
+	public static void forget(String workspace)
+	{
+		WorkQueue q = workspace == null ? null : queues.remove(workspace);
+		if( q != null ) q.pool.shutdown();
+	}
+
+	private void configure()
+	{
+		configured = System.currentTimeMillis();
+		Config config = Manager.of(Config.class);
+		int workers = config.get(Api.class, "defer.workers").asInt();
+		int size = config.get(Api.class, "defer.capacity").asInt();
+		capacity = size > 0 ? size : 10_000;
+		callerRuns = "caller".equalsIgnoreCase(config.get(Api.class, "defer.overflow").asString());
+
+		int n = Math.max(1, workers > 0 ? workers : 4);
+		synchronized(pool)
+		{
+			if( n > pool.getMaximumPoolSize() )
+			{
+				pool.setMaximumPoolSize(n);
+				pool.setCorePoolSize(n);
+			}
+			else if( n < pool.getMaximumPoolSize() )
+			{
+				pool.setCorePoolSize(n);
+				pool.setMaximumPoolSize(n);
+			}
+		}
+	}
+
+	/**
+	 * Queues a task
+	 * @param <T> the task result type
+	 * @param lane the priority lane, from 0 (most urgent) to {@link #LANES} - 1
+	 * @param operation the task
+	 * @return the future result of the task, failed with HTTP 503 if the queue is full
+	 */
+	public <T> CompletableFuture<T> submit(int lane, Callable<T> operation)
+	{
+		if( System.currentTimeMillis() - configured >= 5_000 ) configure();
+
+		CompletableFuture<T> future = new CompletableFuture<>();
+		if( depth.incrementAndGet() > capacity || pool.isShutdown() )
+		{
+			depth.decrementAndGet();
+			rejected.increment();
+			Metrics.add(Globals.MONITOR_TYPE_DEFER, name, "rejected", 0);
+			if( callerRuns && !pool.isShutdown() )
+				execute(operation, future);
+			else
+				future.completeExceptionally(new HttpException(503, "The background work queue is full"));
+			return future;
+		}
+
+		try
+		{
+			pool.execute(new Task<>(Math.max(0, Math.min(LANES - 1, lane)), operation, future));
+		}
+		catch(RejectedExecutionException e)
+		{
+			// the workspace was forgotten meanwhile
+			depth.decrementAndGet();
+			rejected.increment();
+			future.completeExceptionally(new HttpException(503, "The background work queue is closed"));
+		}
+		return future;
+	}
+
+	private <T> void execute(Callable<T> operation, CompletableFuture<T> future)
+	{
+		// cancelled while queued
+		if( future.isDone() ) return;
+		try
+		{
+			future.complete(operation.call());
+			completed.increment();
+		}
+		catch(Throwable t)
+		{
+			failed.increment();
+			future.completeExceptionally(t);
+		}
+	}
+
+	/**
+	 * Returns the usage of the queue
+	 * @return the queue statistics
+	 */
+	public Data stats()
+	{
+		return Data.map()
+			.put("depth", depth.get())
+			.put("capacity", capacity)
+			.put("workers", pool.getMaximumPoolSize())
+			.put("active", pool.getActiveCount())
+			.put("completed", completed.sum())
+			.put("failed", failed.sum())
+			.put("rejected", rejected.sum());
+	}
+}
@@ -23,6 +23,7 @@ import aeonics.entity.Storage;
 import aeonics.template.Parameter;
 import aeonics.template.Template;
 import aeonics.util.Http;
+import uniqorn.internal.Deadline;
 
 public class AWS extends Storage
 {
@@ -307,7 +308,7 @@ public class AWS extends Storage
 			headers.put("Content-Length", String.valueOf(content.length));
 			headers.put("Content-Type", "application/octet-stream");
 
-			Http.post("https://" + host() + uri, Data.of(new String(content, StandardCharsets.ISO_8859_1)), headers, method, 20000);
+			Http.post("https://" + host() + uri, Data.of(new String(content, StandardCharsets.ISO_8859_1)), headers, method, Deadline.timeout(20000));
 		}
 
 		@Override
@@ -325,7 +326,7 @@ public class AWS extends Storage
 			
 			Data headers = signedHeaders(method, canonicalUri, canonicalQueryString, "UNSIGNED-PAYLOAD");
 			
-			Data response = Http.get(endpoint + canonicalUri, null, headers, method, 10000);
+			Data response = Http.get(endpoint + canonicalUri, null, headers, method, Deadline.timeout(10000));
 			return response.asString().getBytes(StandardCharsets.ISO_8859_1);
 		}
 
@@ -344,7 +345,7 @@ public class AWS extends Storage
 			Data headers = signedHeaders(method, canonicalUri, canonicalQueryString, "UNSIGNED-PAYLOAD");
 			try
 			{
-				Http.get(endpoint, null, headers, method, 5000);
+				Http.get(endpoint, null, headers, method, Deadline.timeout(5000));
 				return true;
 			}
 			catch(Http.Error he)
@@ -371,7 +372,7 @@ public class AWS extends Storage
 			
 			try
 			{
-				Data result = Http.get("https://" + host() + "/?" + queryString, null, headers, method, 5000);
+				Data result = Http.get("https://" + host() + "/?" + queryString, null, headers, method, Deadline.timeout(5000));
 				return result.asString().contains("<Key>" + prefix);
 			}
 			catch(Http.Error he)
@@ -392,7 +393,7 @@ public class AWS extends Storage
 			{
 				String uri = "/" + encodePath(path);
 				Data headers = signedHeaders("DELETE", uri, "", "UNSIGNED-PAYLOAD");
-				Http.get("https://" + host() + uri, Data.map(), headers, "DELETE", 5000);
+				Http.get("https://" + host() + uri, Data.map(), headers, "DELETE", Deadline.timeout(5000));
 				return;
 			}
 			
@@ -408,7 +409,7 @@ public class AWS extends Storage
 
 				String queryString = buildQueryString(query);
 				Data headers = signedHeaders("GET", "/", queryString, "UNSIGNED-PAYLOAD");
-				Data response = Http.get("https://" + host() + "/?" + queryString, null, headers, "GET", 10000);
+				Data response = Http.get("https://" + host() + "/?" + queryString, null, headers, "GET", Deadline.timeout(10000));
 				String xml = response.asString();
 
 				List<String> keys = parseKeys(xml);
@@ -436,7 +437,7 @@ public class AWS extends Storage
 			Data headers = signedHeaders("POST", "/?delete", "", payloadHash);
 			headers.put("Content-Type", "application/xml");
 
-			Http.post("https://" + host() + "/?delete", Data.of(body), headers, "POST", 10000);
+			Http.post("https://" + host() + "/?delete", Data.of(body), headers, "POST", Deadline.timeout(10000));
 		}
 
 		@Override
@@ -466,7 +467,7 @@ public class AWS extends Storage
 				
 				String queryString = buildQueryString(query);
 				Data headers = signedHeaders("GET", "/", queryString, "UNSIGNED-PAYLOAD");
-				Data response = Http.get("https://" + host() + "/?" + queryString, null, headers, "GET", 10000);
+				Data response = Http.get("https://" + host() + "/?" + queryString, null, headers, "GET", Deadline.timeout(10000));
 				String xml = response.asString();
 
 				List<String> keys = parseKeys(xml);
@@ -506,7 +507,7 @@ public class AWS extends Storage
 				
 				String queryString = buildQueryString(query);
 				Data headers = signedHeaders("GET", "/", queryString, "UNSIGNED-PAYLOAD");
-				Data response = Http.get("https://" + host() + "/?" + queryString, null, headers, "GET", 10000);
+				Data response = Http.get("https://" + host() + "/?" + queryString, null, headers, "GET", Deadline.timeout(10000));
 				String xml = response.asString();
 
 				// <CommonPrefixes><Prefix>path/dir1/</Prefix></CommonPrefixes>